@@ -0,0 +1,207 @@
+package com.example.bluetoothgatt;
+
+/**
+ * Flyweight cursor over the AD structures of a raw scan record.
+ * <p/>
+ * Unlike {@link AdRecord#parseScanRecord(byte[])} nothing is copied: the cursor only keeps the
+ * type, offset and length of the current structure inside the original array, and the helpers
+ * decode straight from it.  A single instance can be reused for every advertisement:
+ * <pre>
+ *     cursor.reset(scanRecord);
+ *     while (cursor.next()) {
+ *         if (cursor.getType() == AdRecord.TYPE_UUID128) ...
+ *     }
+ * </pre>
+ * Only {@link #getName()} allocates.
+ */
+public class AdCursor {
+    private byte[] mRecord;
+    private int mNext;
+    private int mType;
+    private int mDataOffset;
+    private int mDataLength;
+
+    /**
+     * Reads little-endian 64-bit value.
+     */
+    public static long uint64(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Points the cursor before the first AD structure of a scan record.
+     */
+    public AdCursor reset(byte[] scanRecord) {
+        mRecord = scanRecord;
+        mNext = 0;
+        mType = 0;
+        mDataOffset = 0;
+        mDataLength = 0;
+        return this;
+    }
+
+    /**
+     * Moves to the next AD structure.
+     *
+     * @return false once the significant part of the record is over, or if the next structure
+     * is malformed.
+     */
+    public boolean next() {
+        final byte[] record = mRecord;
+        if (record == null || mNext >= record.length) return false;
+        final int length = record[mNext] & 0xFF;
+        //Done once we run out of records
+        if (length == 0) return false;
+        //Done if the structure does not fit in the record
+        if (mNext + 1 + length > record.length) return false;
+        mType = record[mNext + 1] & 0xFF;
+        mDataOffset = mNext + 2;
+        mDataLength = length - 1;
+        mNext += 1 + length;
+        return true;
+    }
+
+    public byte[] getRecord() {
+        return mRecord;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return Offset in {@link #getRecord()} of the data of the current structure, after the
+     * type byte.
+     */
+    public int getDataOffset() {
+        return mDataOffset;
+    }
+
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    /* Helper functions to decode common data payloads of the current structure */
+
+    /**
+     * @return The number of UUIDs of a 16, 32 or 128-bit service UUID list.
+     */
+    public int getUuidCount() {
+        final int size = uuidSize(mType);
+        return size == 0 ? 0 : mDataLength / size;
+    }
+
+    /**
+     * @return The index-th 16-bit UUID of a 16-bit service UUID list.
+     */
+    public int getUuid16(int index) {
+        final int offset = mDataOffset + index * 2;
+        return (mRecord[offset] & 0xFF) | ((mRecord[offset + 1] & 0xFF) << 8);
+    }
+
+    /**
+     * @return The index-th 32-bit UUID of a 32-bit service UUID list.
+     */
+    public int getUuid32(int index) {
+        final int offset = mDataOffset + index * 4;
+        return (mRecord[offset] & 0xFF) | ((mRecord[offset + 1] & 0xFF) << 8)
+                | ((mRecord[offset + 2] & 0xFF) << 16) | ((mRecord[offset + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * @return The most significant half of the index-th UUID of a 128-bit service UUID list.
+     */
+    public long getUuid128Msb(int index) {
+        return uint64(mRecord, mDataOffset + index * 16 + 8);
+    }
+
+    /**
+     * @return The least significant half of the index-th UUID of a 128-bit service UUID list.
+     */
+    public long getUuid128Lsb(int index) {
+        return uint64(mRecord, mDataOffset + index * 16);
+    }
+
+    /**
+     * @return true if the current structure is a 128-bit service UUID list containing the
+     * given UUID.
+     */
+    public boolean containsUuid128(long msb, long lsb) {
+        if (mType != AdRecord.TYPE_UUID128 && mType != AdRecord.TYPE_UUID128_INC) return false;
+        final int count = mDataLength / 16;
+        for (int i = 0; i < count; i++) {
+            if (getUuid128Lsb(i) == lsb && getUuid128Msb(i) == msb) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The 16-bit UUID of a service data structure, -1 if the structure is of another
+     * type.
+     */
+    public int getServiceDataUuid() {
+        if (mType != AdRecord.TYPE_SERVICEDATA || mDataLength < 2) return -1;
+        return getUuid16(0);
+    }
+
+    /**
+     * @return Offset in {@link #getRecord()} of the payload of a service data structure,
+     * after the UUID.
+     */
+    public int getServiceDataOffset() {
+        return mDataOffset + 2;
+    }
+
+    public int getServiceDataLength() {
+        return Math.max(0, mDataLength - 2);
+    }
+
+    /**
+     * @return The company identifier of a manufacturer specific data structure, -1 if the
+     * structure is of another type.
+     */
+    public int getManufacturerId() {
+        if (mType != AdRecord.TYPE_MANUFACTURER_DATA || mDataLength < 2) return -1;
+        return getUuid16(0);
+    }
+
+    /**
+     * @return Offset in {@link #getRecord()} of the payload of a manufacturer specific data
+     * structure, after the company identifier.
+     */
+    public int getManufacturerDataOffset() {
+        return mDataOffset + 2;
+    }
+
+    public int getManufacturerDataLength() {
+        return Math.max(0, mDataLength - 2);
+    }
+
+    /**
+     * @return The local name of a name structure.  Allocates the string.
+     */
+    public String getName() {
+        if (mType != AdRecord.TYPE_NAME && mType != AdRecord.TYPE_NAME_SHORT) return null;
+        return new String(mRecord, mDataOffset, mDataLength);
+    }
+
+    private static int uuidSize(int type) {
+        switch (type) {
+            case AdRecord.TYPE_UUID16:
+            case AdRecord.TYPE_UUID16_INC:
+                return 2;
+            case AdRecord.TYPE_UUID32:
+            case AdRecord.TYPE_UUID32_INC:
+                return 4;
+            case AdRecord.TYPE_UUID128:
+            case AdRecord.TYPE_UUID128_INC:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+}
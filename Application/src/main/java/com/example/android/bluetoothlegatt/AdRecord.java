@@ -24,20 +24,24 @@ public class AdRecord {
     public static final int TYPE_TRANSMITPOWER = 0xA;
     public static final int TYPE_CONNINTERVAL = 0x12;
     public static final int TYPE_SERVICEDATA = 0x16;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
 
     /*
-     * Read out all the AD structures from the raw scan record
+     * Read out all the AD structures from the raw scan record.
+     * Allocates a list and a copy per structure, see AdCursor for the allocation-free version.
      */
     public static List<AdRecord> parseScanRecord(byte[] scanRecord) {
         List<AdRecord> records = new ArrayList<AdRecord>();
 
         int index = 0;
         while (index < scanRecord.length) {
-            int length = scanRecord[index++];
+            int length = scanRecord[index++] & 0xFF;
             //Done once we run out of records
             if (length == 0) break;
+            //Done if the structure does not fit in the record
+            if (index + length > scanRecord.length) break;
 
-            int type = scanRecord[index];
+            int type = scanRecord[index] & 0xFF;
             //Done if our record isn't a valid type
             if (type == 0) break;
 
@@ -19,26 +19,34 @@ package com.example.android.bluetoothlegatt;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connection and data communication with GATT servers hosted on
+ * Bluetooth LE devices.
+ * <p/>
+ * Several devices can be connected at once, each through its own {@link GattSession}; their
+ * metrics are merged into one stream.  The single-device methods act on the device of the
+ * last {@link #connect(String)} call, whose events are broadcast.
+ * <p/>
+ * The service also hosts the background discovery of the {@link PresenceMonitor}.  While it
+ * runs the service is started, so it outlives the activities and keeps reporting the known
+ * devices that show up with {@link #ACTION_KNOWN_DEVICE_PRESENT}.  A session of the pool
+ * whose reconnection attempts gave up connects again when its device shows up.
  */
 public class BluetoothLeService extends Service {
     public final static String ACTION_GATT_CONNECTED =
@@ -49,6 +57,17 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE =
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
+    // A known device showed up during the background discovery.
+    public final static String ACTION_KNOWN_DEVICE_PRESENT =
+            "com.example.bluetooth.le.ACTION_KNOWN_DEVICE_PRESENT";
+    // Address of the device an action is about.
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
+    public final static String EXTRA_NAME =
+            "com.example.bluetooth.le.EXTRA_NAME";
+    // ScanPrefilter categories of a known device.
+    public final static String EXTRA_CATEGORIES =
+            "com.example.bluetooth.le.EXTRA_CATEGORIES";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
     public final static String EXTRA_DATA_POW =
@@ -70,269 +89,98 @@ public class BluetoothLeService extends Service {
     public final static UUID UUID_ELITE_OUT_OF_RANGE_FLAG =
             UUID.fromString(SampleGattAttributes.ELITE_TRAINER_OOR_FLAG);
     private final static String TAG = BluetoothLeService.class.getSimpleName();
-    private final static String TAG_SET_POWER = "BluetoothLeService.potenza";
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
     public static int WheelCircumference = 2070;
     private final IBinder mBinder = new LocalBinder();
-    public int PrevCumulativeWheelRev;
-    public int PrevLastWheelEventTime;
-    public int PrevCumulativeCrankRev;
-    public int PrevLastCrankEventTime;
-    public int PrevCumulativeWheelRevPw;
-    public int PrevLastWheelEventTimePw;
-    public int PrevCumulativeCrankRevPw;
-    public int PrevLastCrankEventTimePw;
-    public double Speed;
-    public double Cadence;
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // Connection pool, one session per device, guarded by "this".
+    private final ArrayList<GattSession> mSessions = new ArrayList<GattSession>();
+    private int mNextSessionId = 1;
+    // Session of the single-device API (connect, WriteCharacteristic...), whose events are
+    // broadcast.
+    private volatile GattSession mPrimarySession;
+    private volatile SessionListener[] mSessionListeners = new SessionListener[0];
+    // Background discovery, kept running without activities while the service is started.
+    private PresenceMonitor mPresenceMonitor;
+    private volatile PresenceMonitor.Listener[] mPresenceListeners =
+            new PresenceMonitor.Listener[0];
+    // Connection attempts of the sessions, one at a time.
+    private final ConnectGate mConnectGate = new ConnectGate();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Decoder and descriptor policy of the known characteristics.
+    private final CharacteristicRegistry mCharacteristics = CharacteristicRegistry.createDefault();
+    // Decoded metrics of all the sessions are delivered in-process; ACTION_DATA_AVAILABLE
+    // broadcasts for the sensor characteristics are only sent in compatibility mode.
+    private final MetricsBus mMetricsBus = new MetricsBus();
+    private boolean mLegacyDataBroadcasts = false;
+    private final GattSession.Host mSessionHost = new GattSession.Host() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+        public void onSessionStateChanged(GattSession session, int status) {
+            if (session == mPrimarySession) {
+                broadcastUpdate(session.getState() == GattSession.STATE_CONNECTED
+                        ? ACTION_GATT_CONNECTED : ACTION_GATT_DISCONNECTED, session);
             }
+            final SessionListener[] listeners = mSessionListeners;
+            for (SessionListener listener : listeners) {
+                listener.onSessionStateChanged(session, status);
+            }
+            logPoolStats();
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
+        public void onSessionServicesDiscovered(GattSession session) {
+            if (session == mPrimarySession) {
+                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, session);
+            }
+            final SessionListener[] listeners = mSessionListeners;
+            for (SessionListener listener : listeners) {
+                listener.onSessionServicesDiscovered(session);
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onSessionBroadcast(GattSession session, Intent intent) {
+            if (session == mPrimarySession) {
+                intent.putExtra(EXTRA_ADDRESS, session.getAddress());
+                sendBroadcast(intent);
             }
         }
+    };
 
+    // Called on the scan processing thread.
+    private final PresenceMonitor.Listener mPresenceListener = new PresenceMonitor.Listener() {
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onDevicesUpdated() {
+            final PresenceMonitor.Listener[] listeners = mPresenceListeners;
+            for (PresenceMonitor.Listener listener : listeners) {
+                listener.onDevicesUpdated();
+            }
         }
-    };
-
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-    }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-
-        boolean SpeedDataPresent = false;
-        boolean CadenceDataPresent = false;
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d("DATA", "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d("DATA", "Heart rate format UINT8.");
-            }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d("DATA", String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-
-        } else if (UUID_CSC_MEASUREMENT.equals(characteristic.getUuid())) {
-            final byte[] Data = characteristic.getValue();
-            int format32 = -1;
-            int format16 = -1;
-            int flagValue = Data[0];
-            if (flagValue == 1) {
-                // solo velocita
-                format32 = BluetoothGattCharacteristic.FORMAT_UINT32;
-                format16 = BluetoothGattCharacteristic.FORMAT_UINT16;
-                int CumulativeWheelRev = characteristic.getIntValue(format32, 1);
-                Log.d("DATA", String.format("Cumulat. Wheel Rev.: %d", CumulativeWheelRev));
-                int LastWheelEventTime = characteristic.getIntValue(format16, 5);
-                Log.d("DATA", String.format("Last Wheel Event Time: %d", LastWheelEventTime));
-                double temp = CumulativeWheelRev;
-                final double Speed = ((temp - PrevCumulativeWheelRev) * 1024 * 3600 * WheelCircumference) / (LastWheelEventTime - PrevLastWheelEventTime) / 1000000;
-                // TODO gestione overflow
-                PrevCumulativeWheelRev = CumulativeWheelRev;
-                PrevLastWheelEventTime = LastWheelEventTime;
-                Log.d("DATA", String.format("Speed: %.1f", Speed));
-                intent.putExtra(EXTRA_DATA, "vel: " + String.valueOf((double) Math.round(Speed * 10) / 10));
-                intent.putExtra(EXTRA_DATA_SPD, Speed);
-            } else if (flagValue == 2) {
-                // solo cadenza  ((flag & 0x10) = 1)
-                format32 = BluetoothGattCharacteristic.FORMAT_UINT32;
-                format16 = BluetoothGattCharacteristic.FORMAT_UINT16;
-                int CumulativeCrankRev = characteristic.getIntValue(format16, 1);
-                Log.d("DATA", String.format("Cumulat. Crank Rev.: %d", CumulativeCrankRev));
-                int LastCrankEventTime = characteristic.getIntValue(format16, 3);
-                Log.d("DATA", String.format("Last Crank Event Time: %d", LastCrankEventTime));
-                double temp = CumulativeCrankRev;
-                if (temp != PrevCumulativeCrankRev){
-                    Cadence = ((temp - PrevCumulativeCrankRev) * 1024 * 60) / (LastCrankEventTime - PrevLastCrankEventTime);
-                    // TODO gestione overflow
-                    PrevCumulativeCrankRev = CumulativeCrankRev;
-                    PrevLastCrankEventTime = LastCrankEventTime;
-                }
-                Log.d("DATA", String.format("Speed: %.1f", Cadence));
-                intent.putExtra(EXTRA_DATA, "Cad: " + String.valueOf((int) Cadence));
-                intent.putExtra(EXTRA_DATA_CAD, (int) Cadence);
-
-
-
-            } else if (flagValue == 3) {
-                // vel e  cadenza
-                format32 = BluetoothGattCharacteristic.FORMAT_UINT32;
-                format16 = BluetoothGattCharacteristic.FORMAT_UINT16;
-                int CumulativeWheelRev = characteristic.getIntValue(format32, 1);
-                Log.d("DATA", String.format("Cumulat. Wheel Rev.: %d", CumulativeWheelRev));
-                int LastWheelEventTime = characteristic.getIntValue(format16, 5);
-                Log.d("DATA", String.format("Last Wheel Event Time: %d", LastWheelEventTime));
-                double temp = CumulativeWheelRev;
-                //fatto perch� altrimenti la divisione di interi da intero e non double
-                final double Speed = ((temp - PrevCumulativeWheelRev) * 1024 * 3600 * WheelCircumference)
-                        / (LastWheelEventTime - PrevLastWheelEventTime) / 1000000;
-                // TODO gestione overflow
-
-                int CumulativeCrankRev = characteristic.getIntValue(format16, 7);
-                Log.d("DATA", String.format("Cumulat. Crank Rev.: %d", CumulativeCrankRev));
-                int LastCrankEventTime = characteristic.getIntValue(format16, 9);
-                Log.d("DATA", String.format("Last Crank Event Time: %d", LastCrankEventTime));
-                temp = CumulativeCrankRev;
-                if (LastCrankEventTime != PrevLastCrankEventTime) {
-                    Cadence = ((temp - PrevCumulativeCrankRev) * 1024 * 60) / (LastCrankEventTime - PrevLastCrankEventTime);
-                    // TODO gestione overflow
-                    PrevCumulativeCrankRev = CumulativeCrankRev;
-                    PrevLastCrankEventTime = LastCrankEventTime;
-                    PrevCumulativeWheelRev = CumulativeWheelRev;
-                    PrevLastWheelEventTime = LastWheelEventTime;
+        @Override
+        public void onKnownDevicePresent(final String address, String name, int categories) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final GattSession session = getSession(address);
+                    if (session != null) session.reconnectIfIdle();
                 }
-                Log.d("DATA", String.format("Speed: %.1f; Cad: %f", Speed, Cadence));
-                intent.putExtra(EXTRA_DATA, "vel: " + String.valueOf((double) Math.round(Speed * 10) / 10) + "; Cad: " + String.valueOf((int) Cadence));
-                intent.putExtra(EXTRA_DATA_SPD, Speed);
-                intent.putExtra(EXTRA_DATA_CAD, (int) Cadence);
-
-
-            }
-        } else if (UUID_CYCLING_POWER_MEASUREMENT.equals(characteristic.getUuid())) {
-            final byte[] Data = characteristic.getValue();
-            int format32 = -1;
-            int format16 = -1;
-            int formatS16 = -1;
-            double SpeedPw = 0;
-            int CadencePw = 0;
-            formatS16 = BluetoothGattCharacteristic.FORMAT_SINT16;
-            int Flags = characteristic.getIntValue(formatS16, 0);
-            Log.d("DATA", String.format("Pow Meas Flag: %d", Flags));
-            int InstaPow = characteristic.getIntValue(formatS16, 2);
-            Log.d("DATA", String.format("Instantaneaous power: %d", InstaPow));
-
-            if ((Flags & 0x10) == 0x10) {     // caso che ci sia il dato di velocità incorporato
-                SpeedDataPresent = true;
-                format32 = BluetoothGattCharacteristic.FORMAT_UINT32;
-                format16 = BluetoothGattCharacteristic.FORMAT_UINT16;
-                int CumulativeWheelRevPw = characteristic.getIntValue(format32, 4);
-                Log.d("DATA", String.format("Cumulat. Wheel Rev.: %d", CumulativeWheelRevPw));
-                int LastWheelEventTimePw = characteristic.getIntValue(format16, 8);
-                Log.d("DATA", String.format("Last Wheel Event Time: %d", LastWheelEventTimePw));
-                double temp = CumulativeWheelRevPw;
-                SpeedPw = (double) ((temp - PrevCumulativeWheelRevPw) * 2048 * 3600 * WheelCircumference) / (LastWheelEventTimePw - PrevLastWheelEventTimePw) / 1000000;
-                // TODO gestione overflow
-                PrevCumulativeWheelRevPw = CumulativeWheelRevPw;
-                PrevLastWheelEventTimePw = LastWheelEventTimePw;
-                Log.d("DATA", String.format("Speed: %.1f", SpeedPw));
-            }
-            if ((Flags & 0x20) == 0x20) {     // caso che ci sia il dato di cadenza incorporato
-                CadenceDataPresent = true;
-                format32 = BluetoothGattCharacteristic.FORMAT_UINT32;
-                format16 = BluetoothGattCharacteristic.FORMAT_UINT16;
-                int CumulativeCrankRevPw = characteristic.getIntValue(format16, 10);
-                Log.d("DATA", String.format("Cumulat. Crank Rev.: %d", CumulativeCrankRevPw));
-                int LastCrankEventTimePw = characteristic.getIntValue(format16, 12);
-                Log.d("DATA", String.format("Last Crank Event Time: %d", LastCrankEventTimePw));
-                double temp = CumulativeCrankRevPw;
-                CadencePw = (int) ((temp - PrevCumulativeCrankRevPw) * 1024 * 60) / (LastCrankEventTimePw - PrevLastCrankEventTimePw);
-                // TODO gestione overflow
-                PrevCumulativeCrankRevPw = CumulativeCrankRevPw;
-                PrevLastCrankEventTimePw = LastCrankEventTimePw;
-                Log.d("DATA", String.format("Cad: %d", CadencePw));
-
-            }
-            if ((SpeedDataPresent == false) && (CadenceDataPresent == false)) {
-                intent.putExtra(EXTRA_DATA, "Pow: " + String.valueOf(InstaPow) + "Watt");
-                intent.putExtra(EXTRA_DATA_POW, InstaPow);
-            }
-            if ((SpeedDataPresent == true) && (CadenceDataPresent == false)) {
-                intent.putExtra(EXTRA_DATA, "Pow: " + String.valueOf(InstaPow) + "Watt; vel: " + String.valueOf((double) Math.round(SpeedPw * 10) / 10));
-                intent.putExtra(EXTRA_DATA_POW, InstaPow);
-                intent.putExtra(EXTRA_DATA_SPD, SpeedPw);
-            }
-            if ((SpeedDataPresent == false) && (CadenceDataPresent == true)) {
-                intent.putExtra(EXTRA_DATA, "Pow: " + String.valueOf(InstaPow) + "Watt; Cad: " + String.valueOf(CadencePw));
-                intent.putExtra(EXTRA_DATA_POW, InstaPow);
-                intent.putExtra(EXTRA_DATA_CAD, (int) CadencePw);
-            }
-            if ((SpeedDataPresent == true) && (CadenceDataPresent = true)) {
-                intent.putExtra(EXTRA_DATA, "Pow: " + String.valueOf(InstaPow) + "Watt; vel: " + String.valueOf((double) Math.round(SpeedPw * 10) / 10) + "; Cad: " + String.valueOf(CadencePw));
-                intent.putExtra(EXTRA_DATA_POW, InstaPow);
-                intent.putExtra(EXTRA_DATA_SPD, SpeedPw);
-                intent.putExtra(EXTRA_DATA_CAD, (int) CadencePw);
-            }
-        } else if (UUID_CYCLING_POWER_FEATURE.equals(characteristic.getUuid())) {
-            int formatS16 = -1;
-            formatS16 = BluetoothGattCharacteristic.FORMAT_SINT16;
-            int Flags = characteristic.getIntValue(formatS16, 0);
-            Log.d("DATA", String.format("Pow feature: %d", Flags));
-            intent.putExtra(EXTRA_DATA, "Pow feat.: " + String.valueOf(Flags));
-
-        } else if (UUID_ELITE_OUT_OF_RANGE_FLAG.equals(characteristic.getUuid())) {
-            int formatS16 = -1;
-            formatS16 = BluetoothGattCharacteristic.FORMAT_SINT8;
-            int Flags = characteristic.getIntValue(formatS16, 0);
-            Log.d("DATA", String.format("Elite OoR Flag: %d", Flags));
-            intent.putExtra(EXTRA_DATA_ELITE_OOR_FLAG, Flags);
-
-
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+            });
+            final Intent intent = new Intent(ACTION_KNOWN_DEVICE_PRESENT);
+            intent.putExtra(EXTRA_ADDRESS, address);
+            intent.putExtra(EXTRA_NAME, name);
+            intent.putExtra(EXTRA_CATEGORIES, categories);
+            sendBroadcast(intent);
+            final PresenceMonitor.Listener[] listeners = mPresenceListeners;
+            for (PresenceMonitor.Listener listener : listeners) {
+                listener.onKnownDevicePresent(address, name, categories);
             }
         }
+    };
 
+    private void broadcastUpdate(final String action, GattSession session) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, session.getAddress());
         sendBroadcast(intent);
     }
 
@@ -341,6 +189,24 @@ public class BluetoothLeService extends Service {
         return mBinder;
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The service is only started to keep the background discovery running, also when the
+        // system restarts it.
+        final PresenceMonitor monitor = initialize() ? getPresenceMonitor() : null;
+        if (monitor == null || !monitor.start()) {
+            stopSelf(startId);
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mPresenceMonitor != null) mPresenceMonitor.stop();
+        close();
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
         // After using a given device, you should make sure that BluetoothGatt.close() is called
@@ -377,7 +243,8 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device, which becomes the device
+     * of the single-device methods.  The sessions of the other devices stay connected.
      *
      * @param address The device address of the destination device.
      * @return Return true if the connection is initiated successfully. The connection result
@@ -386,35 +253,39 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public boolean connect(final String address) {
+        final GattSession session = connectSession(address);
+        if (session == null) return false;
+        mPrimarySession = session;
+        return true;
+    }
+
+    /**
+     * Connects to a device of the pool, without changing the device of the single-device
+     * methods.
+     *
+     * @return The session of the device, or null if the connection could not be initiated.
+     */
+    public GattSession connectSession(final String address) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
-            return false;
+            return null;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
+        GattSession session;
+        synchronized (this) {
+            session = findSession(address);
+            if (session == null) {
+                session = new GattSession(mNextSessionId++, address, this, mSessionHost,
+                        mCharacteristics, mMetricsBus, mConnectGate);
+                session.setLegacyDataBroadcasts(mLegacyDataBroadcasts);
+                mSessions.add(session);
             }
         }
-
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         if (device == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
+            return null;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+        return session.connect(device) ? session : null;
     }
 
     /**
@@ -424,23 +295,61 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession session = mPrimarySession;
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        session.disconnect();
+    }
+
+    public void disconnectSession(String address) {
+        final GattSession session = getSession(address);
+        if (session != null) session.disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * released properly.  Closes all the sessions of the pool.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        final GattSession[] sessions;
+        synchronized (this) {
+            sessions = mSessions.toArray(new GattSession[mSessions.size()]);
+            mSessions.clear();
+        }
+        for (GattSession session : sessions) {
+            session.close();
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mPrimarySession = null;
+    }
+
+    /**
+     * Closes the session of one device and removes it from the pool.
+     */
+    public void closeSession(String address) {
+        final GattSession session;
+        synchronized (this) {
+            session = findSession(address);
+            if (session == null) return;
+            mSessions.remove(session);
+        }
+        session.close();
+        if (session == mPrimarySession) mPrimarySession = null;
+    }
+
+    /**
+     * @return The session of the device, or null if it is not in the pool.
+     */
+    public synchronized GattSession getSession(String address) {
+        return findSession(address);
+    }
+
+    /**
+     * @return A copy of the sessions of the pool.
+     */
+    public synchronized List<GattSession> getSessions() {
+        return new ArrayList<GattSession>(mSessions);
     }
 
     /**
@@ -451,40 +360,21 @@ public class BluetoothLeService extends Service {
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession session = mPrimarySession;
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        session.readCharacteristic(characteristic);
     }
 
     public void WriteCharacteristic(BluetoothGattCharacteristic characteristic, Integer brakeMode, Integer powerLevelValue) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession session = mPrimarySession;
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        if (brakeMode.equals(0)) {
-            byte[] dataToSend = new byte[3];
-            dataToSend[0] = 0;
-            dataToSend[1] = (byte) (powerLevelValue % 256);
-            dataToSend[2] = (byte) (powerLevelValue / 256);
-
-            characteristic.setValue(dataToSend);
-            mBluetoothGatt.writeCharacteristic(characteristic);
-            Log.w(TAG_SET_POWER, "Set Power: " + powerLevelValue.toString());
-        } else {
-            if (powerLevelValue > 200) {
-                powerLevelValue = 200;
-            }
-            byte[] dataToSend = new byte[2];
-            dataToSend[0] = 1;
-            dataToSend[1] = (byte) (powerLevelValue % 256);
-
-            characteristic.setValue(dataToSend);
-            mBluetoothGatt.writeCharacteristic(characteristic);
-            Log.w(TAG_SET_POWER, "Set Level: " + powerLevelValue.toString());
-        }
-
+        session.writeBrakeTarget(characteristic, brakeMode, powerLevelValue);
     }
 
     /**
@@ -495,40 +385,21 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession session = mPrimarySession;
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
-        // This is specific to CSC Measurement.
-        if (UUID_CSC_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
-        // This is specific to Power Measurement.
-        if (UUID_CYCLING_POWER_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
-        // This is specific to Power Measurement.
-        if (UUID_ELITE_OUT_OF_RANGE_FLAG.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
+        session.setCharacteristicNotification(characteristic, enabled);
+    }
+
+    /**
+     * @return True when the notifications of the previous connection were enabled again after
+     * a reconnection, see {@link GattSession#hasResumedNotifications()}.
+     */
+    public boolean hasResumedNotifications() {
+        final GattSession session = mPrimarySession;
+        return session != null && session.hasResumedNotifications();
     }
 
     /**
@@ -538,9 +409,173 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        final GattSession session = mPrimarySession;
+        if (session == null) return null;
+
+        return session.getServices();
+    }
+
+    /**
+     * @return true if the service is connected to the given device.
+     */
+    public boolean isConnected(String address) {
+        final GattSession session = getSession(address);
+        return session != null && session.isConnected();
+    }
+
+    /**
+     * @return The GATT operation queue of the connection, for its latency and throughput.
+     */
+    public GattOperationQueue getGattOperationQueue() {
+        final GattSession session = mPrimarySession;
+        return session == null ? null : session.getGattOperationQueue();
+    }
+
+    /**
+     * @return The negotiated MTU and requested connection priority.
+     */
+    public ConnectionMetrics getConnectionMetrics() {
+        final GattSession session = mPrimarySession;
+        return session == null ? null : session.getConnectionMetrics();
+    }
+
+    /**
+     * @return The brake command channel, for its issued/coalesced/acknowledged counts.
+     */
+    public BrakeCommandChannel getBrakeCommandChannel() {
+        final GattSession session = mPrimarySession;
+        return session == null ? null : session.getBrakeCommandChannel();
+    }
+
+    /**
+     * Registers a listener for the decoded sensor metrics of all the sessions.  The callbacks
+     * run on the Bluetooth binder threads and carry the id of the session they come from.
+     *
+     * @param listener The listener to add.
+     */
+    public void registerMetricsListener(MetricsListener listener) {
+        mMetricsBus.register(listener);
+    }
+
+    public void unregisterMetricsListener(MetricsListener listener) {
+        mMetricsBus.unregister(listener);
+    }
+
+    /**
+     * @return The background discovery, or null if Bluetooth is not initialized.
+     */
+    public synchronized PresenceMonitor getPresenceMonitor() {
+        if (mPresenceMonitor == null && mBluetoothAdapter != null) {
+            mPresenceMonitor = new PresenceMonitor(mBluetoothAdapter, new KnownDeviceStore(this),
+                    mPresenceListener);
+        }
+        return mPresenceMonitor;
+    }
+
+    /**
+     * Starts the background discovery.  The service is started as well, so that the
+     * discovery goes on, and reports the known devices, once the activities are gone.
+     *
+     * @return true if the discovery is running.
+     */
+    public boolean startPresenceMonitor() {
+        final PresenceMonitor monitor = getPresenceMonitor();
+        if (monitor == null || !monitor.start()) return false;
+        startService(new Intent(this, BluetoothLeService.class));
+        return true;
+    }
+
+    /**
+     * Stops the background discovery.  The service is then destroyed with its last client.
+     */
+    public void stopPresenceMonitor() {
+        final PresenceMonitor monitor = mPresenceMonitor;
+        if (monitor == null || !monitor.isRunning()) return;
+        monitor.stop();
+        stopSelf();
+    }
+
+    public synchronized void registerPresenceListener(PresenceMonitor.Listener listener) {
+        final PresenceMonitor.Listener[] listeners =
+                new PresenceMonitor.Listener[mPresenceListeners.length + 1];
+        System.arraycopy(mPresenceListeners, 0, listeners, 0, mPresenceListeners.length);
+        listeners[mPresenceListeners.length] = listener;
+        mPresenceListeners = listeners;
+    }
+
+    public synchronized void unregisterPresenceListener(PresenceMonitor.Listener listener) {
+        final ArrayList<PresenceMonitor.Listener> listeners =
+                new ArrayList<PresenceMonitor.Listener>();
+        for (PresenceMonitor.Listener registered : mPresenceListeners) {
+            if (registered != listener) listeners.add(registered);
+        }
+        mPresenceListeners = listeners.toArray(new PresenceMonitor.Listener[listeners.size()]);
+    }
+
+    public synchronized void registerSessionListener(SessionListener listener) {
+        final SessionListener[] listeners = new SessionListener[mSessionListeners.length + 1];
+        System.arraycopy(mSessionListeners, 0, listeners, 0, mSessionListeners.length);
+        listeners[mSessionListeners.length] = listener;
+        mSessionListeners = listeners;
+    }
+
+    public synchronized void unregisterSessionListener(SessionListener listener) {
+        final ArrayList<SessionListener> listeners = new ArrayList<SessionListener>();
+        for (SessionListener registered : mSessionListeners) {
+            if (registered != listener) listeners.add(registered);
+        }
+        mSessionListeners = listeners.toArray(new SessionListener[listeners.size()]);
+    }
+
+    /**
+     * Enables or disables the compatibility mode in which every decoded sensor sample is also
+     * sent as an {@code ACTION_DATA_AVAILABLE} broadcast.  Connection state events are always
+     * broadcast.
+     *
+     * @param enabled If true, broadcast the decoded samples too.
+     */
+    public synchronized void setLegacyDataBroadcasts(boolean enabled) {
+        mLegacyDataBroadcasts = enabled;
+        for (GattSession session : mSessions) {
+            session.setLegacyDataBroadcasts(enabled);
+        }
+    }
+
+    /**
+     * Logs the notification rate of each connection, to see how the stack scales with the
+     * number of devices.
+     */
+    public synchronized void logPoolStats() {
+        int connected = 0;
+        float total = 0;
+        for (GattSession session : mSessions) {
+            if (!session.isConnected()) continue;
+            connected++;
+            total += session.getNotificationRate();
+            Log.d(TAG, "Session " + session.getId() + " " + session.getAddress() + ": "
+                    + session.getNotificationRate() + " notifications/s");
+        }
+        Log.d(TAG, connected + " connected of " + mSessions.size() + ", " + total
+                + " notifications/s in total");
+    }
+
+    // Called with the lock held.
+    private GattSession findSession(String address) {
+        if (address == null) return null;
+        for (int i = 0; i < mSessions.size(); i++) {
+            final GattSession session = mSessions.get(i);
+            if (address.equals(session.getAddress())) return session;
+        }
+        return null;
+    }
+
+    /**
+     * Notified of the connection events of all the sessions, on the Bluetooth binder threads.
+     */
+    public interface SessionListener {
+        void onSessionStateChanged(GattSession session, int status);
 
-        return mBluetoothGatt.getServices();
+        void onSessionServicesDiscovered(GattSession session);
     }
 
     public class LocalBinder extends Binder {
@@ -0,0 +1,321 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Sends the brake targets of the Elite trainer, keeping only the newest one.
+ * <p/>
+ * At most one brake write is in flight and writes are spaced by at least
+ * {@link #MIN_WRITE_INTERVAL}.  A target submitted meanwhile replaces the pending one, so the
+ * superseded targets never reach the radio and the trainer always gets the latest resistance
+ * as soon as it can take it.
+ * <p/>
+ * When the brake characteristic supports it, the targets are sent as write-without-response,
+ * which does not wait for an ATT write response.  The queue still completes these writes when
+ * the stack has handed them to the controller, which is the flow control here.  Every
+ * {@link #CONFIRM_EVERY}th write is a confirmed one, so a silent loss of the link or of the
+ * brake is noticed.  The round-trip latency is recorded per write type.
+ * <p/>
+ * Each submitted target gets a sequence number.  A write carries the newest target submitted
+ * before it was issued, so its completion acknowledges all the targets up to its sequence.
+ */
+public class BrakeCommandChannel {
+    public static final int MODE_POWER = 0;
+    public static final int MODE_LEVEL = 1;
+    public static final int MAX_LEVEL = 200;
+    // Shortest time between two brake writes the trainer is given to apply a target.
+    private static final long MIN_WRITE_INTERVAL = 250;
+    // Every CONFIRM_EVERY-th write without response is replaced by a confirmed write.
+    private static final int CONFIRM_EVERY = 8;
+    // Indexes of the statistics by write type.
+    private static final int STATS_CONFIRMED = 0;
+    private static final int STATS_WITHOUT_RESPONSE = 1;
+
+    private final GattOperationQueue mQueue;
+    private final Handler mHandler;
+    private Listener mListener;
+    private boolean mWithoutResponse = true;
+
+    // Pending target, guarded by "this".
+    private BluetoothGattCharacteristic mCharacteristic;
+    private boolean mPending;
+    private int mPendingMode;
+    private int mPendingValue;
+    private boolean mPendingConfirmed;
+    private long mSequence;
+    private long mPendingSequence;
+    private long mInFlightSequence;
+    private boolean mInFlight;
+    private int mInFlightStats;
+    private long mInFlightSince;
+    private int mUnconfirmedCount;
+    private long mLastWriteTime;
+    private boolean mSendScheduled;
+
+    // Statistics, guarded by "this".
+    private long mSubmittedCount;
+    private long mIssuedCount;
+    private long mCoalescedCount;
+    private long mAckedCount;
+    private long mFailedCount;
+    private final long[] mTypeAckedCount = new long[2];
+    private final long[] mTypeTotalLatency = new long[2];
+    private final long[] mTypeMaxLatency = new long[2];
+
+    private final Runnable mSend = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BrakeCommandChannel.this) {
+                mSendScheduled = false;
+            }
+            sendPending();
+        }
+    };
+    private final GattOperationQueue.Callback mWriteCallback = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(int status) {
+            final boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            final boolean withoutResponse;
+            final long latency;
+            final long sequence;
+            final Listener listener;
+            synchronized (BrakeCommandChannel.this) {
+                mInFlight = false;
+                sequence = mInFlightSequence;
+                latency = SystemClock.elapsedRealtime() - mInFlightSince;
+                withoutResponse = mInFlightStats == STATS_WITHOUT_RESPONSE;
+                listener = mListener;
+                if (success) {
+                    mAckedCount++;
+                    mTypeAckedCount[mInFlightStats]++;
+                    mTypeTotalLatency[mInFlightStats] += latency;
+                    if (latency > mTypeMaxLatency[mInFlightStats]) {
+                        mTypeMaxLatency[mInFlightStats] = latency;
+                    }
+                } else {
+                    mFailedCount++;
+                }
+            }
+            sendPending();
+            if (listener != null) {
+                listener.onBrakeWriteComplete(sequence, withoutResponse, latency, success);
+            }
+        }
+    };
+
+    public BrakeCommandChannel(GattOperationQueue queue) {
+        mQueue = queue;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Encodes a brake target as written to the trainer brake characteristic.
+     *
+     * @param mode  {@link #MODE_POWER} with a value in watts, or {@link #MODE_LEVEL} with a
+     *              level up to {@link #MAX_LEVEL}.
+     */
+    public static byte[] encode(int mode, int value) {
+        if (mode == MODE_POWER) {
+            return new byte[]{0, (byte) (value & 0xFF), (byte) ((value >> 8) & 0xFF)};
+        }
+        return new byte[]{1, (byte) Math.min(value, MAX_LEVEL)};
+    }
+
+    public static boolean supportsWriteWithoutResponse(
+            BluetoothGattCharacteristic characteristic) {
+        return (characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+
+    /**
+     * Enables or disables the write-without-response fast path, used only if the brake
+     * characteristic supports it.  Enabled by default.
+     */
+    public synchronized void setWriteWithoutResponse(boolean enabled) {
+        mWithoutResponse = enabled;
+        mUnconfirmedCount = 0;
+    }
+
+    public synchronized boolean isWriteWithoutResponse() {
+        return mWithoutResponse;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the new brake target, replacing the one not sent yet if any.
+     *
+     * @return The sequence number of the target.
+     */
+    public long submit(BluetoothGattCharacteristic characteristic, int mode, int value) {
+        return submit(characteristic, mode, value, false);
+    }
+
+    /**
+     * Sets the new brake target, replacing the one not sent yet if any.
+     *
+     * @param confirmed Whether the target must be sent as a confirmed write, so that its
+     *                  completion is the write response of the trainer.  A newer target
+     *                  replacing it before it is sent is confirmed as well.
+     * @return The sequence number of the target.
+     */
+    public long submit(BluetoothGattCharacteristic characteristic, int mode, int value,
+                       boolean confirmed) {
+        final long sequence;
+        synchronized (this) {
+            mSubmittedCount++;
+            if (mPending) {
+                mCoalescedCount++;
+            }
+            mCharacteristic = characteristic;
+            mPending = true;
+            mPendingMode = mode;
+            mPendingValue = value;
+            mPendingConfirmed |= confirmed;
+            sequence = ++mSequence;
+            mPendingSequence = sequence;
+        }
+        sendPending();
+        return sequence;
+    }
+
+    /**
+     * Drops the pending target, e.g. on disconnection.
+     */
+    public synchronized void clear() {
+        mHandler.removeCallbacks(mSend);
+        mSendScheduled = false;
+        mPending = false;
+        mPendingConfirmed = false;
+        mInFlight = false;
+        mCharacteristic = null;
+    }
+
+    public synchronized long getSubmittedCount() {
+        return mSubmittedCount;
+    }
+
+    public synchronized long getIssuedCount() {
+        return mIssuedCount;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    public synchronized long getAckedCount() {
+        return mAckedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return The average time from issuing a write to its completion, in milliseconds.
+     */
+    public synchronized long getAverageAckLatency(boolean withoutResponse) {
+        final int stats = withoutResponse ? STATS_WITHOUT_RESPONSE : STATS_CONFIRMED;
+        return mTypeAckedCount[stats] == 0 ? 0
+                : mTypeTotalLatency[stats] / mTypeAckedCount[stats];
+    }
+
+    public synchronized long getMaxAckLatency(boolean withoutResponse) {
+        return mTypeMaxLatency[withoutResponse ? STATS_WITHOUT_RESPONSE : STATS_CONFIRMED];
+    }
+
+    public synchronized void resetStats() {
+        mSubmittedCount = 0;
+        mIssuedCount = 0;
+        mCoalescedCount = 0;
+        mAckedCount = 0;
+        mFailedCount = 0;
+        for (int i = 0; i < mTypeAckedCount.length; i++) {
+            mTypeAckedCount[i] = 0;
+            mTypeTotalLatency[i] = 0;
+            mTypeMaxLatency[i] = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "submitted " + mSubmittedCount + ", issued " + mIssuedCount
+                + ", coalesced " + mCoalescedCount + ", acked " + mAckedCount
+                + ", failed " + mFailedCount
+                + ", confirmed latency avg " + getAverageAckLatency(false)
+                + " ms max " + getMaxAckLatency(false)
+                + " ms, without response latency avg " + getAverageAckLatency(true)
+                + " ms max " + getMaxAckLatency(true) + " ms";
+    }
+
+    private void sendPending() {
+        final BluetoothGattCharacteristic characteristic;
+        final byte[] value;
+        final int writeType;
+        synchronized (this) {
+            if (!mPending || mInFlight || mSendScheduled) return;
+            final long now = SystemClock.elapsedRealtime();
+            final long wait = mLastWriteTime + MIN_WRITE_INTERVAL - now;
+            if (wait > 0) {
+                mSendScheduled = true;
+                mHandler.postDelayed(mSend, wait);
+                return;
+            }
+            characteristic = mCharacteristic;
+            value = encode(mPendingMode, mPendingValue);
+            mPending = false;
+            mInFlight = true;
+            mInFlightSequence = mPendingSequence;
+            mInFlightSince = now;
+            mLastWriteTime = now;
+            mIssuedCount++;
+            final boolean confirmed = mPendingConfirmed;
+            mPendingConfirmed = false;
+            if (!confirmed && mWithoutResponse && supportsWriteWithoutResponse(characteristic)
+                    && ++mUnconfirmedCount < CONFIRM_EVERY) {
+                writeType = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+                mInFlightStats = STATS_WITHOUT_RESPONSE;
+            } else {
+                writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+                mInFlightStats = STATS_CONFIRMED;
+                mUnconfirmedCount = 0;
+            }
+        }
+        if (!mQueue.write(characteristic, value, writeType, mWriteCallback)) {
+            // Not connected, the write fails without a completion callback.
+            final long sequence;
+            final Listener listener;
+            synchronized (this) {
+                mInFlight = false;
+                mFailedCount++;
+                sequence = mInFlightSequence;
+                listener = mListener;
+            }
+            if (listener != null) {
+                listener.onBrakeWriteComplete(sequence,
+                        writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, 0, false);
+            }
+        }
+    }
+
+    /**
+     * Notified when a brake write completes, on the thread that completed it, or fails to be
+     * issued, on the thread that submitted it.
+     */
+    public interface Listener {
+        /**
+         * @param sequence Sequence number of the target written, see {@link #submit}.
+         * @param latency  Time from issuing the write to its completion, in milliseconds.  For a
+         *                 write without response this is the local completion, when the stack
+         *                 has handed the write to the controller, not an acknowledgement.
+         */
+        void onBrakeWriteComplete(long sequence, boolean withoutResponse, long latency,
+                                  boolean success);
+    }
+}
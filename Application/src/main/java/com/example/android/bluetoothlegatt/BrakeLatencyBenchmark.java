@@ -0,0 +1,269 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Measures the brake command latency with confirmed writes, then with writes without response,
+ * by sending {@link #ROUNDS} targets with each write type.
+ * <p/>
+ * Two times are recorded per write type.  The write completion is the time from issuing the
+ * write to its completion callback: the ATT write response for a confirmed write, but only the
+ * local hand-off to the controller for a write without response, which the trainer never
+ * acknowledges.  In power mode the target alternates by {@link #POWER_STEP} watts, and the
+ * trainer response is the time from issuing the write to the first power notification within
+ * {@link #POWER_TOLERANCE} watts of the new target, which is what the rider feels.  It needs
+ * the rider pedaling, after {@link #MAX_MISSED_RESPONSES} targets not reached the rounds only
+ * wait for the write completion.  The channel keeps confirming one write in
+ * {@code CONFIRM_EVERY}, those count with the write type of their phase.
+ * <p/>
+ * A round not completed within {@link #ROUND_TIMEOUT} ends the benchmark.  The listener and the
+ * write type of the channel are restored in any case, and so is the target in power mode.
+ * Runs on the main thread.
+ */
+public class BrakeLatencyBenchmark implements BrakeCommandChannel.Listener, MetricsListener {
+    private static final int ROUNDS = 10;
+    private static final int POWER_STEP = 50;
+    private static final int POWER_TOLERANCE = 10;
+    private static final int MAX_MISSED_RESPONSES = 3;
+    private static final long ROUND_TIMEOUT = 10000;
+
+    private final GattSession mSession;
+    private final BrakeCommandChannel mChannel;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final int mMode;
+    private final int mValue;
+    private final Callback mCallback;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mPreviousWithoutResponse;
+
+    // Round state, written on the main thread and read by the callbacks, guarded by "this".
+    private boolean mWithoutResponse;
+    private int mRound;
+    private long mRoundSequence;
+    private long mLastSequence;
+    private long mRoundStart;
+    private boolean mWriteDone;
+    private boolean mAwaitingResponse;
+    private int mTarget;
+    private int mMissedResponses;
+    private long mFailedCount;
+    private long mConfirmedAverage;
+    private long mConfirmedMax;
+    // Trainer response statistics by write type, 0 confirmed and 1 without response.
+    private final long[] mResponseCount = new long[2];
+    private final long[] mResponseTotal = new long[2];
+    private final long[] mResponseMax = new long[2];
+
+    private final Runnable mNext = new Runnable() {
+        @Override
+        public void run() {
+            next();
+        }
+    };
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onRoundTimeout();
+        }
+    };
+
+    public BrakeLatencyBenchmark(GattSession session, BluetoothGattCharacteristic characteristic,
+                                 int mode, int value, Callback callback) {
+        mSession = session;
+        mChannel = session.getBrakeCommandChannel();
+        mCharacteristic = characteristic;
+        mMode = mode;
+        mValue = value;
+        mCallback = callback;
+    }
+
+    public void start() {
+        synchronized (this) {
+            mWithoutResponse = false;
+            mRound = 0;
+            mTarget = mValue;
+            mMissedResponses = mMode == BrakeCommandChannel.MODE_POWER ? 0 : MAX_MISSED_RESPONSES;
+        }
+        mPreviousWithoutResponse = mChannel.isWriteWithoutResponse();
+        mChannel.setListener(this);
+        mChannel.setWriteWithoutResponse(false);
+        mChannel.resetStats();
+        mSession.registerMetricsListener(this);
+        next();
+    }
+
+    @Override
+    public void onBrakeWriteComplete(long sequence, boolean withoutResponse, long latency,
+                                     boolean success) {
+        synchronized (this) {
+            if (sequence < mRoundSequence || mWriteDone) return;
+            mWriteDone = true;
+            if (!success) {
+                mFailedCount++;
+                mAwaitingResponse = false;
+            }
+            if (mAwaitingResponse) return;
+        }
+        mHandler.post(mNext);
+    }
+
+    @Override
+    public void onPower(int source, int watts) {
+        synchronized (this) {
+            if (!mAwaitingResponse || Math.abs(watts - mTarget) > POWER_TOLERANCE) return;
+            mAwaitingResponse = false;
+            final int stats = mWithoutResponse ? 1 : 0;
+            final long response = SystemClock.elapsedRealtime() - mRoundStart;
+            mResponseCount[stats]++;
+            mResponseTotal[stats] += response;
+            if (response > mResponseMax[stats]) {
+                mResponseMax[stats] = response;
+            }
+            if (!mWriteDone) return;
+        }
+        mHandler.post(mNext);
+    }
+
+    @Override
+    public void onSpeed(int source, double kmh) {
+    }
+
+    @Override
+    public void onCadence(int source, int rpm) {
+    }
+
+    @Override
+    public void onHeartRate(int source, int bpm) {
+    }
+
+    @Override
+    public void onRrIntervals(int source, int[] rrIntervals, int count) {
+    }
+
+    @Override
+    public void onOorFlag(int source, int flag) {
+    }
+
+    private void onRoundTimeout() {
+        final boolean stuck;
+        synchronized (this) {
+            // No completion at all, the link or the queue is stuck.
+            stuck = !mWriteDone;
+            if (stuck) {
+                mRound = -1;
+            } else if (mAwaitingResponse) {
+                mAwaitingResponse = false;
+                mMissedResponses++;
+            }
+        }
+        if (stuck) {
+            finish();
+        } else {
+            next();
+        }
+    }
+
+    private void next() {
+        mHandler.removeCallbacks(mNext);
+        mHandler.removeCallbacks(mTimeout);
+        final int target;
+        synchronized (this) {
+            if (mRound == ROUNDS) {
+                if (!mWithoutResponse) {
+                    mConfirmedAverage = mChannel.getAverageAckLatency(false);
+                    mConfirmedMax = mChannel.getMaxAckLatency(false);
+                    if (BrakeCommandChannel.supportsWriteWithoutResponse(mCharacteristic)) {
+                        mWithoutResponse = true;
+                        mRound = 0;
+                        mChannel.setWriteWithoutResponse(true);
+                        mChannel.resetStats();
+                    }
+                }
+            }
+            if (mRound == ROUNDS) {
+                target = -1;
+            } else {
+                mRound++;
+                if (mMode == BrakeCommandChannel.MODE_POWER) {
+                    mTarget = mTarget == mValue ? mValue + POWER_STEP : mValue;
+                }
+                target = mTarget;
+                mWriteDone = false;
+                mAwaitingResponse = mMissedResponses < MAX_MISSED_RESPONSES;
+                mRoundStart = SystemClock.elapsedRealtime();
+                // Set before submitting, a failed write is reported on this thread.
+                mRoundSequence = mLastSequence + 1;
+            }
+        }
+        if (target < 0) {
+            finish();
+            return;
+        }
+        mHandler.postDelayed(mTimeout, ROUND_TIMEOUT);
+        final long sequence = mChannel.submit(mCharacteristic, mMode, target);
+        synchronized (this) {
+            mLastSequence = sequence;
+            mRoundSequence = sequence;
+        }
+    }
+
+    private void finish() {
+        mHandler.removeCallbacks(mNext);
+        mHandler.removeCallbacks(mTimeout);
+        mSession.unregisterMetricsListener(this);
+        mChannel.setListener(null);
+        mChannel.setWriteWithoutResponse(mPreviousWithoutResponse);
+        if (mMode == BrakeCommandChannel.MODE_POWER) {
+            mChannel.submit(mCharacteristic, mMode, mValue);
+        }
+        final StringBuilder summary = new StringBuilder();
+        synchronized (this) {
+            if (mRound < 0) {
+                summary.append("Timed out waiting for a brake write; ");
+            }
+            summary.append("Confirmed write response: avg ").append(mConfirmedAverage)
+                    .append(" ms, max ").append(mConfirmedMax).append(" ms");
+            if (mWithoutResponse) {
+                summary.append("; without response, local completion only: avg ")
+                        .append(mChannel.getAverageAckLatency(true)).append(" ms, max ")
+                        .append(mChannel.getMaxAckLatency(true)).append(" ms");
+            } else {
+                summary.append("; write without response not supported");
+            }
+            if (mMode != BrakeCommandChannel.MODE_POWER) {
+                summary.append("; trainer response not measured in level mode");
+            } else {
+                appendResponse(summary, "confirmed", 0);
+                if (mWithoutResponse) {
+                    appendResponse(summary, "without response", 1);
+                }
+                if (mMissedResponses >= MAX_MISSED_RESPONSES) {
+                    summary.append("; targets not reached, is the rider pedaling?");
+                }
+            }
+            if (mFailedCount > 0) {
+                summary.append("; ").append(mFailedCount).append(" writes failed");
+            }
+        }
+        mCallback.onBenchmarkDone(summary.toString());
+    }
+
+    // Guarded by "this".
+    private void appendResponse(StringBuilder summary, String label, int stats) {
+        summary.append("; trainer response, ").append(label).append(": ");
+        if (mResponseCount[stats] == 0) {
+            summary.append("none");
+            return;
+        }
+        summary.append("avg ").append(mResponseTotal[stats] / mResponseCount[stats])
+                .append(" ms, max ").append(mResponseMax[stats]).append(" ms over ")
+                .append(mResponseCount[stats]).append(" targets");
+    }
+
+    public interface Callback {
+        void onBenchmarkDone(String summary);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Maps a characteristic UUID to the decoder of its notifications and to the Client
+ * Characteristic Configuration value to write when notifications are enabled.
+ * <p/>
+ * Both are packed in a single int, looked up in O(1) through a {@link UuidIntMap}, so adding a
+ * profile does not lengthen the notification path.
+ */
+public class CharacteristicRegistry {
+    // Decoders.
+    public static final int DECODER_NONE = 0;
+    public static final int DECODER_HEART_RATE = 1;
+    public static final int DECODER_CSC = 2;
+    public static final int DECODER_CYCLING_POWER = 3;
+    public static final int DECODER_CYCLING_POWER_FEATURE = 4;
+    public static final int DECODER_ELITE_OOR_FLAG = 5;
+
+    // Client Characteristic Configuration policies.
+    public static final int CCCD_NONE = 0;
+    public static final int CCCD_NOTIFY = 1;
+    public static final int CCCD_INDICATE = 2;
+
+    private final UuidIntMap mEntries = new UuidIntMap();
+
+    /**
+     * Creates the registry of the characteristics handled by {@code BluetoothLeService}.
+     */
+    public static CharacteristicRegistry createDefault() {
+        final CharacteristicRegistry registry = new CharacteristicRegistry();
+        registry.register(UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT),
+                DECODER_HEART_RATE, CCCD_NOTIFY);
+        registry.register(UUID.fromString(SampleGattAttributes.CSC_MEASUREMENT),
+                DECODER_CSC, CCCD_NOTIFY);
+        registry.register(UUID.fromString(SampleGattAttributes.CYCLING_POWER_MEASUREMENT),
+                DECODER_CYCLING_POWER, CCCD_NOTIFY);
+        registry.register(UUID.fromString(SampleGattAttributes.CYCLING_POWER_FEATURE),
+                DECODER_CYCLING_POWER_FEATURE, CCCD_NONE);
+        registry.register(UUID.fromString(SampleGattAttributes.ELITE_TRAINER_OOR_FLAG),
+                DECODER_ELITE_OOR_FLAG, CCCD_NOTIFY);
+        return registry;
+    }
+
+    public static int decoderOf(int entry) {
+        return entry & 0xFF;
+    }
+
+    public static int cccdPolicyOf(int entry) {
+        return (entry >> 8) & 0xFF;
+    }
+
+    public void register(UUID uuid, int decoder, int cccdPolicy) {
+        // The marker bit keeps the entry non-zero even for DECODER_NONE and CCCD_NONE.
+        mEntries.put(uuid, 0x10000 | (cccdPolicy << 8) | decoder);
+    }
+
+    /**
+     * @return The packed entry of the characteristic, 0 if it is not registered.  Use
+     * {@link #decoderOf(int)} and {@link #cccdPolicyOf(int)} to read it.
+     */
+    public int lookup(UUID uuid) {
+        return mEntries.get(uuid);
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+
+/**
+ * Lets one connection attempt at a time through, shared by the sessions of the pool.
+ * <p/>
+ * The stack handles one {@code connectGatt(autoConnect=false)} at a time and the attempts of
+ * several trainers dropping together only fail each other, often with status 133.  A client
+ * requests the gate and is called back on the main thread once it holds it; it releases the
+ * gate when its attempt connected, failed or timed out, and the next client waiting in
+ * request order gets it.
+ */
+public class ConnectGate {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by "this".
+    private final ArrayList<Client> mWaiting = new ArrayList<Client>();
+    private Client mHolder;
+    private boolean mHolderNotified;
+    private long mGrantedCount;
+
+    private final Runnable mGrant = new Runnable() {
+        @Override
+        public void run() {
+            final Client holder;
+            synchronized (ConnectGate.this) {
+                if (mHolder == null || mHolderNotified) return;
+                mHolderNotified = true;
+                holder = mHolder;
+            }
+            holder.onGateOpen();
+        }
+    };
+
+    /**
+     * Requests the gate, nothing happens if the client already holds or awaits it.
+     */
+    public synchronized void request(Client client) {
+        if (mHolder == client || mWaiting.contains(client)) return;
+        if (mHolder == null) {
+            grant(client);
+        } else {
+            mWaiting.add(client);
+        }
+    }
+
+    /**
+     * Releases the gate if the client holds it, or withdraws its request.
+     */
+    public synchronized void release(Client client) {
+        if (mHolder != client) {
+            mWaiting.remove(client);
+            return;
+        }
+        mHolder = null;
+        if (!mWaiting.isEmpty()) {
+            grant(mWaiting.remove(0));
+        }
+    }
+
+    public synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (mHolder == null ? "open" : "held by " + mHolder) + ", " + mWaiting.size()
+                + " waiting, " + mGrantedCount + " granted";
+    }
+
+    // Called with the lock held.
+    private void grant(Client client) {
+        mHolder = client;
+        mHolderNotified = false;
+        mGrantedCount++;
+        mHandler.post(mGrant);
+    }
+
+    public interface Client {
+        /**
+         * Called on the main thread when the client holds the gate.  It must release it once
+         * its attempt is over, and right away if it has nothing to attempt anymore.
+         */
+        void onGateOpen();
+    }
+}
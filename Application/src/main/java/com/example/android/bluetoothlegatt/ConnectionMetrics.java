@@ -0,0 +1,143 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Link parameters of a connection: negotiated MTU and connection priority, and the time the
+ * reconnections take.
+ * <p/>
+ * Up to API 25 the stack does not report the connection interval it agreed on, so the
+ * interval recorded here is the nominal range of the requested priority, as documented for
+ * {@code BluetoothGatt.requestConnectionPriority}.
+ * <p/>
+ * The reconnection time runs from the loss of the link to the first sensor sample received
+ * after it is restored, which is what the rider notices.  It is kept across connections.
+ */
+public class ConnectionMetrics {
+    // ATT_MTU before any exchange.
+    public static final int DEFAULT_MTU = 23;
+    // Priority values, BluetoothGatt.CONNECTION_PRIORITY_* on API 21 and above.
+    public static final int PRIORITY_BALANCED = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_LOW_POWER = 2;
+
+    private int mMtu = DEFAULT_MTU;
+    private int mPriority = PRIORITY_BALANCED;
+    private int mPriorityRequests;
+    // Reconnection times, not cleared by reset().
+    private long mLinkLostTime;
+    private int mReconnectCount;
+    private long mLastReconnectTime;
+    private long mTotalReconnectTime;
+    private long mMaxReconnectTime;
+
+    /**
+     * @return The nominal minimum connection interval of a priority, in hundredths of ms.
+     */
+    public static int getIntervalMin(int priority) {
+        switch (priority) {
+            case PRIORITY_HIGH:
+                return 1125;
+            case PRIORITY_LOW_POWER:
+                return 10000;
+            default:
+                return 3000;
+        }
+    }
+
+    /**
+     * @return The nominal maximum connection interval of a priority, in hundredths of ms.
+     */
+    public static int getIntervalMax(int priority) {
+        switch (priority) {
+            case PRIORITY_HIGH:
+                return 1500;
+            case PRIORITY_LOW_POWER:
+                return 12500;
+            default:
+                return 5000;
+        }
+    }
+
+    public synchronized void reset() {
+        mMtu = DEFAULT_MTU;
+        mPriority = PRIORITY_BALANCED;
+        mPriorityRequests = 0;
+    }
+
+    public synchronized void onMtuChanged(int mtu) {
+        mMtu = mtu;
+    }
+
+    public synchronized void onPriorityRequested(int priority) {
+        mPriority = priority;
+        mPriorityRequests++;
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return The largest notification or write payload, ATT_MTU minus the 3-byte header.
+     */
+    public synchronized int getMaxPayload() {
+        return mMtu - 3;
+    }
+
+    public synchronized int getPriority() {
+        return mPriority;
+    }
+
+    public synchronized int getPriorityRequests() {
+        return mPriorityRequests;
+    }
+
+    /**
+     * Called when an established link is lost.
+     */
+    public synchronized void onLinkLost(long nowMillis) {
+        // The first loss counts when the link drops again before any sample.
+        if (mLinkLostTime == 0) mLinkLostTime = nowMillis;
+    }
+
+    /**
+     * Called with the first sensor sample after a loss of the link.
+     */
+    public synchronized void onFirstSample(long nowMillis) {
+        if (mLinkLostTime == 0) return;
+        final long reconnectTime = nowMillis - mLinkLostTime;
+        mLinkLostTime = 0;
+        mReconnectCount++;
+        mLastReconnectTime = reconnectTime;
+        mTotalReconnectTime += reconnectTime;
+        if (reconnectTime > mMaxReconnectTime) mMaxReconnectTime = reconnectTime;
+    }
+
+    public synchronized int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * @return The time from the last loss of the link to the first sample after it, in
+     * milliseconds.
+     */
+    public synchronized long getLastReconnectTime() {
+        return mLastReconnectTime;
+    }
+
+    public synchronized long getAverageReconnectTime() {
+        return mReconnectCount == 0 ? 0 : mTotalReconnectTime / mReconnectCount;
+    }
+
+    public synchronized long getMaxReconnectTime() {
+        return mMaxReconnectTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MTU " + mMtu + ", priority " + mPriority + " (interval "
+                + getIntervalMin(mPriority) / 100f + "-" + getIntervalMax(mPriority) / 100f
+                + " ms), " + mPriorityRequests + " priority requests, " + mReconnectCount
+                + " reconnections (last " + mLastReconnectTime + " ms, avg "
+                + getAverageReconnectTime() + " ms, max " + mMaxReconnectTime + " ms)";
+    }
+}
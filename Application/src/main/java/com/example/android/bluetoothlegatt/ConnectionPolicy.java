@@ -0,0 +1,154 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Chooses the connection priority and MTU of a connection.
+ * <p/>
+ * High priority (short connection interval) while the rider is moving or the trainer is under
+ * ERG control, so notifications and brake writes are not held back; balanced once the ride
+ * stops, and low power after {@link #LOW_POWER_DELAY} without activity.  A larger MTU is
+ * requested when the device has characteristics whose values do not fit the default one.
+ * <p/>
+ * Priority and MTU requests go through the {@link GattOperationQueue} and are ignored below
+ * API 21.
+ */
+public class ConnectionPolicy {
+    // MTU requested for long characteristics, fits a power vector with its angles.
+    private static final int LARGE_MTU = 185;
+    // Without a sample showing movement for this long the ride is considered stopped.
+    private static final long RIDE_TIMEOUT = 10000;
+    // ERG control stays active this long after the last power target.
+    private static final long ERG_TIMEOUT = 60000;
+    private static final long LOW_POWER_DELAY = 120000;
+    private static final long CHECK_INTERVAL = 5000;
+    private static final UUID UUID_CYCLING_POWER_VECTOR =
+            UUID.fromString(SampleGattAttributes.CYCLING_POWER_VECTOR);
+
+    private final GattOperationQueue mQueue;
+    private final ConnectionMetrics mMetrics;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by "this".
+    private boolean mConnected;
+    private long mConnectedTime;
+    private long mLastMoving;
+    private long mLastErgTarget;
+    private int mPriority = -1;
+
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            update(SystemClock.elapsedRealtime());
+            synchronized (ConnectionPolicy.this) {
+                if (mConnected) mHandler.postDelayed(mCheck, CHECK_INTERVAL);
+            }
+        }
+    };
+
+    public ConnectionPolicy(GattOperationQueue queue, ConnectionMetrics metrics) {
+        mQueue = queue;
+        mMetrics = metrics;
+    }
+
+    public void onConnected() {
+        synchronized (this) {
+            mConnected = true;
+            mConnectedTime = SystemClock.elapsedRealtime();
+            mLastMoving = 0;
+            mLastErgTarget = 0;
+            mPriority = -1;
+        }
+        mMetrics.reset();
+        // Service discovery and the first notifications go faster at high priority.
+        request(ConnectionMetrics.PRIORITY_HIGH);
+        mHandler.removeCallbacks(mCheck);
+        mHandler.postDelayed(mCheck, CHECK_INTERVAL);
+    }
+
+    public synchronized void onDisconnected() {
+        mConnected = false;
+        mHandler.removeCallbacks(mCheck);
+    }
+
+    /**
+     * Requests a larger MTU if one of the discovered characteristics needs it.
+     */
+    public void onServicesDiscovered(List<BluetoothGattService> services) {
+        if (services == null) return;
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (UUID_CYCLING_POWER_VECTOR.equals(characteristic.getUuid())) {
+                    mQueue.requestMtu(LARGE_MTU, null);
+                    return;
+                }
+            }
+        }
+    }
+
+    public void onMtuChanged(int mtu) {
+        mMetrics.onMtuChanged(mtu);
+    }
+
+    /**
+     * Called for each sensor sample, without allocating.
+     *
+     * @param moving true if the sample shows power, speed or cadence.
+     */
+    public void onSample(boolean moving, long nowMillis) {
+        if (!moving) return;
+        final boolean changed;
+        synchronized (this) {
+            changed = nowMillis - mLastMoving > RIDE_TIMEOUT;
+            mLastMoving = nowMillis;
+        }
+        if (changed) update(nowMillis);
+    }
+
+    /**
+     * Called for each brake target sent to the trainer.
+     */
+    public void onBrakeTarget(int mode, long nowMillis) {
+        if (mode != BrakeCommandChannel.MODE_POWER) return;
+        synchronized (this) {
+            mLastErgTarget = nowMillis;
+        }
+        update(nowMillis);
+    }
+
+    private void update(long nowMillis) {
+        final int priority;
+        synchronized (this) {
+            if (!mConnected) return;
+            final boolean riding = mLastMoving != 0 && nowMillis - mLastMoving < RIDE_TIMEOUT;
+            final boolean erg = mLastErgTarget != 0 && nowMillis - mLastErgTarget < ERG_TIMEOUT;
+            final long lastActivity = Math.max(mConnectedTime,
+                    Math.max(mLastMoving, mLastErgTarget));
+            if (riding || erg) {
+                priority = ConnectionMetrics.PRIORITY_HIGH;
+            } else if (nowMillis - lastActivity < LOW_POWER_DELAY) {
+                priority = ConnectionMetrics.PRIORITY_BALANCED;
+            } else {
+                priority = ConnectionMetrics.PRIORITY_LOW_POWER;
+            }
+        }
+        request(priority);
+    }
+
+    private void request(int priority) {
+        synchronized (this) {
+            if (priority == mPriority) return;
+            mPriority = priority;
+        }
+        if (mQueue.requestConnectionPriority(priority)) {
+            mMetrics.onPriorityRequested(priority);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Reusable holder for a decoded CSC Measurement notification.
+ * Filled by {@link SensorDecoder#decodeCsc(byte[], CscSample)}.
+ */
+public class CscSample {
+    public int mFlags;
+
+    public boolean mWheelPresent;
+    /** Cumulative wheel revolutions, uint32. */
+    public long mCumulativeWheelRevs;
+    /** Last wheel event time, uint16 in 1/1024 s. */
+    public int mLastWheelEventTime;
+
+    public boolean mCrankPresent;
+    /** Cumulative crank revolutions, uint16. */
+    public int mCumulativeCrankRevs;
+    /** Last crank event time, uint16 in 1/1024 s. */
+    public int mLastCrankEventTime;
+}
@@ -40,11 +40,14 @@ import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -56,6 +59,13 @@ public class DeviceControlActivity extends Activity {
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
+    private final static UUID UUID_ELITE_TRAINER_SERVICE =
+            UUID.fromString(SampleGattAttributes.ELITE_TRAINER_SERVICE);
+    private final static UUID UUID_ELITE_TRAINER_BRAKE =
+            UUID.fromString(SampleGattAttributes.ELITE_TRAINER_TRAINER_BRAKE);
+    // Sensors notify at 1-4 Hz each, refreshing the metrics faster is wasted layout work.
+    private static final int MAX_UI_UPDATES_PER_SECOND = 10;
+    private static final String BPM_SUFFIX = " bpm";
     public static Integer MaxPowerSlider;
     private static Integer REQUESTED_POWER_MODE = 0;
     private static Integer REQUESTED_LEVEL_MODE = 1;
@@ -84,6 +94,19 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mBluetoothLeService.registerMetricsListener(mMetricsCoalescer);
+            if (mBluetoothLeService.isConnected(mDeviceAddress)) {
+                // Connected directly at launch, the connection broadcasts were missed.
+                mConnected = true;
+                updateConnectionState(R.string.connected);
+                invalidateOptionsMenu();
+                final List<BluetoothGattService> services =
+                        mBluetoothLeService.getSupportedGattServices();
+                if (services != null && !services.isEmpty()) {
+                    displayGattServices(services);
+                }
+                return;
+            }
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -165,19 +188,59 @@ public class DeviceControlActivity extends Activity {
                 updateConnectionState(R.string.disconnected);
                 invalidateOptionsMenu();
                 clearUI();
+                mMetricsCoalescer.invalidate();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
                 displayGattServices(mBluetoothLeService.getSupportedGattServices());
             } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
+                // Only characteristic reads arrive here, the sensor metrics come through
+                // mMetricsCoalescer.
                 displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
-                displaySpeed(intent.getDoubleExtra(BluetoothLeService.EXTRA_DATA_SPD, 0));
-                displayPow(intent.getIntExtra(BluetoothLeService.EXTRA_DATA_POW, 0));
-                displayCad(intent.getIntExtra(BluetoothLeService.EXTRA_DATA_CAD, 0));
-                Integer tmp = intent.getIntExtra(BluetoothLeService.EXTRA_DATA_ELITE_OOR_FLAG, 0);
-                displayOORFlag(tmp);
             }
         }
     };
+    // Shows the metrics received from the service at most once per frame, skipping the
+    // unchanged ones.
+    private final MetricsCoalescer.Display mMetricsDisplay = new MetricsCoalescer.Display() {
+        @Override
+        public void showPower(int watts) {
+            displayPow(watts);
+            if (LaunchMetrics.onPowerSample()) {
+                getActionBar().setSubtitle(getString(R.string.first_power_delay,
+                        LaunchMetrics.getFirstPowerDelay()));
+                Log.i(TAG, "First power sample " + LaunchMetrics.getFirstPowerDelay()
+                        + " ms after launch, direct connect " + LaunchMetrics.isDirectConnect());
+            }
+        }
+
+        @Override
+        public void showSpeed(double kmh) {
+            displaySpeed(kmh);
+        }
+
+        @Override
+        public void showCadence(int rpm) {
+            displayCad(rpm);
+        }
+
+        @Override
+        public void showHeartRate(int bpm) {
+            displayHeartRate(bpm);
+        }
+
+        @Override
+        public void showOorFlag(int flag) {
+            displayOORFlag(flag);
+        }
+    };
+    private MetricsCoalescer mMetricsCoalescer;
+    private KnownDeviceStore mKnownDevices;
+    // Text buffers reused by the display methods, see TextView#setText(char[], int, int).
+    private final char[] mSpeedText = new char[16];
+    private final char[] mPowerText = new char[16];
+    private final char[] mCadenceText = new char[16];
+    private final char[] mHeartRateText = new char[16];
+    private char mDecimalSeparator;
 
     private static IntentFilter makeGattUpdateIntentFilter() {
         final IntentFilter intentFilter = new IntentFilter();
@@ -220,12 +283,20 @@ public class DeviceControlActivity extends Activity {
         mProgressBarTooHigh = (ProgressBar) findViewById(R.id.progressBarTooHigh);
         mProgressBarTooLow = (ProgressBar) findViewById(R.id.progressBarTooLow);
 
+        mMetricsCoalescer = new MetricsCoalescer(mMetricsDisplay, MAX_UI_UPDATES_PER_SECOND);
+        mKnownDevices = new KnownDeviceStore(this);
+        mKnownDevices.remember(mDeviceAddress, mDeviceName, System.currentTimeMillis());
+        mDecimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
-        MaxPowerSlider = 1000;
+        // Settings of this device, from its last use.
+        MaxPowerSlider = mKnownDevices.getMaxPowerSlider(mDeviceAddress, 1000);
+        BluetoothLeService.WheelCircumference = mKnownDevices.getWheelCircumference(
+                mDeviceAddress, BluetoothLeService.WheelCircumference);
 
 
         mSeekBarPowerLevelValue.setOnSeekBarChangeListener(new OnSeekBarChangeListener() {
@@ -288,6 +359,7 @@ public class DeviceControlActivity extends Activity {
     protected void onResume() {
         super.onResume();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        mMetricsCoalescer.start();
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
@@ -302,11 +374,15 @@ public class DeviceControlActivity extends Activity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        mMetricsCoalescer.stop();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.unregisterMetricsListener(mMetricsCoalescer);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -317,11 +393,13 @@ public class DeviceControlActivity extends Activity {
         if (mConnected) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
+            menu.findItem(R.id.menu_brake_benchmark).setVisible(GroupEliteTrainer != null);
             menu.findItem(R.id.menu_settings).setVisible(true);
             menu.findItem(R.id.chk_always_on).setVisible(true);
         } else {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
+            menu.findItem(R.id.menu_brake_benchmark).setVisible(false);
             menu.findItem(R.id.menu_settings).setVisible(true);
             menu.findItem(R.id.chk_always_on).setVisible(true);
         }
@@ -337,6 +415,9 @@ public class DeviceControlActivity extends Activity {
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_brake_benchmark:
+                runBrakeLatencyBenchmark();
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -355,6 +436,30 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
+    // Sends brake targets with each write type and shows the write and trainer response times.
+    private void runBrakeLatencyBenchmark() {
+        if (mBluetoothLeService == null || GroupEliteTrainer == null
+                || ChildEliteTrainerBrake == null) {
+            return;
+        }
+        final GattSession session = mBluetoothLeService.getSession(mDeviceAddress);
+        if (session == null) return;
+        final BluetoothGattCharacteristic characteristic =
+                mGattCharacteristics.get(GroupEliteTrainer).get(ChildEliteTrainerBrake);
+        final int mode = mToggleBrakeMode.isChecked() ? REQUESTED_POWER_MODE
+                : REQUESTED_LEVEL_MODE;
+        new BrakeLatencyBenchmark(session, characteristic, mode,
+                mSeekBarPowerLevelValue.getProgress(),
+                new BrakeLatencyBenchmark.Callback() {
+                    @Override
+                    public void onBenchmarkDone(String summary) {
+                        Log.i(TAG, "Brake latency: " + summary);
+                        Toast.makeText(DeviceControlActivity.this, summary, Toast.LENGTH_LONG)
+                                .show();
+                    }
+                }).start();
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -372,25 +477,52 @@ public class DeviceControlActivity extends Activity {
     }
 
     private void displaySpeed(double data) {
-        if (data > 0) {
-            mDataSpeedField.setText(String.format("%.1f", data));
+        // 0 when the sensor stopped notifying.
+        if (data >= 0) {
+            final int tenths = (int) Math.round(data * 10);
+            int length = formatInt(mSpeedText, 0, tenths / 10);
+            mSpeedText[length++] = mDecimalSeparator;
+            mSpeedText[length++] = (char) ('0' + tenths % 10);
+            mDataSpeedField.setText(mSpeedText, 0, length);
 
         }
     }
 
     private void displayPow(int data) {
-        if (data > 0) {
-            mDataPowerField.setText(String.format("%d", data));
+        // 0 while coasting.
+        if (data >= 0) {
+            mDataPowerField.setText(mPowerText, 0, formatInt(mPowerText, 0, data));
         }
     }
 
     private void displayCad(int data) {
         if (data >= 0) {
-            mDataCadenceField.setText(String.format("%d", data));
+            mDataCadenceField.setText(mCadenceText, 0, formatInt(mCadenceText, 0, data));
 
         }
     }
 
+    // Writes the decimal digits of a non negative value, returns the end offset.
+    private static int formatInt(char[] buffer, int offset, int value) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    private void displayHeartRate(int data) {
+        if (data > 0) {
+            final int length = formatInt(mHeartRateText, 0, data);
+            BPM_SUFFIX.getChars(0, BPM_SUFFIX.length(), mHeartRateText, length);
+            mDataField.setText(mHeartRateText, 0, length + BPM_SUFFIX.length());
+        }
+    }
+
     // display the out or range warning
     private void displayOORFlag(int data) {
         Integer Flag = data;
@@ -415,6 +547,8 @@ public class DeviceControlActivity extends Activity {
     // on the UI.
     private void displayGattServices(List<BluetoothGattService> gattServices) {
         if (gattServices == null) return;
+        // After a reconnection the service has enabled the notifications again.
+        final boolean resumed = mBluetoothLeService.hasResumedNotifications();
         String uuid = null;
         String unknownServiceString = getResources().getString(R.string.unknown_service);
         String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
@@ -428,13 +562,14 @@ public class DeviceControlActivity extends Activity {
         // Loops through available GATT Services.
         for (BluetoothGattService gattService : gattServices) {
             HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
+            final UUID serviceUuid = gattService.getUuid();
+            uuid = serviceUuid.toString();
             currentServiceData.put(
-                    LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
+                    LIST_NAME, SampleGattAttributes.lookup(serviceUuid, unknownServiceString));
             currentServiceData.put(LIST_UUID, uuid);
             gattServiceData.add(currentServiceData);
 
-            if (SampleGattAttributes.lookup(uuid, unknownServiceString).equals("Elite Real Trainer Service")) {
+            if (UUID_ELITE_TRAINER_SERVICE.equals(serviceUuid)) {
                 GroupEliteTrainer = groupCnt;
             }
             groupCnt++;
@@ -450,16 +585,17 @@ public class DeviceControlActivity extends Activity {
             for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
                 charas.add(gattCharacteristic);
                 HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                uuid = gattCharacteristic.getUuid().toString();
+                final UUID charaUuid = gattCharacteristic.getUuid();
+                uuid = charaUuid.toString();
                 currentCharaData.put(
-                        LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
+                        LIST_NAME, SampleGattAttributes.lookup(charaUuid, unknownCharaString));
                 currentCharaData.put(LIST_UUID, uuid);
                 gattCharacteristicGroupData.add(currentCharaData);
 
-                if (SampleGattAttributes.lookup(uuid, unknownCharaString).equals("Elite Trainer Brake")) {
+                if (UUID_ELITE_TRAINER_BRAKE.equals(charaUuid)) {
                     ChildEliteTrainerBrake = childCnt;
                 }
-                if (SampleGattAttributes.lookup(uuid, unknownCharaString).equals("Elite Out of Range Flag")) {
+                if (BluetoothLeService.UUID_ELITE_OUT_OF_RANGE_FLAG.equals(charaUuid)) {
                     ChildEliteOutOfRangeFlag = childCnt;
                     if (mGattCharacteristics != null) {
 //                        final BluetoothGattCharacteristic characteristic =
@@ -467,8 +603,10 @@ public class DeviceControlActivity extends Activity {
                         final int charaProp = gattCharacteristic.getProperties();
                         if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
                             mNotifyCharacteristic = gattCharacteristic;
-                            mBluetoothLeService.setCharacteristicNotification(
-                                    gattCharacteristic, true);
+                            if (!resumed) {
+                                mBluetoothLeService.setCharacteristicNotification(
+                                        gattCharacteristic, true);
+                            }
                         }
 
                     }
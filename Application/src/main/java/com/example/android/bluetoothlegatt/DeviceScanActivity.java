@@ -21,11 +21,18 @@ import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -38,8 +45,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 
@@ -48,55 +54,121 @@ import java.util.List;
  */
 public class DeviceScanActivity extends ListActivity {
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 10 seconds.
-    private static final long SCAN_PERIOD = 10000;
+    // Minimum time between two refreshes of the device list.
+    private static final long LIST_REFRESH_INTERVAL = 250;
+    // Scan results waiting to be processed, the next ones are dropped.
+    private static final int SCAN_QUEUE_CAPACITY = 256;
+    // A known device seen by a scan within this time is around and connected at launch.
+    private static final long PRESENT_WINDOW = 60000;
+    private final static String TAG = DeviceScanActivity.class.getSimpleName();
     private LeDeviceListAdapter mLeDeviceListAdapter;
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
     private Handler mHandler;
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
+    private final ScanDeviceRegistry mDeviceRegistry = ScanDeviceRegistry.getShared();
+    // Publishes the registry to the list at most every LIST_REFRESH_INTERVAL.
+    private final AtomicBoolean mListRefreshScheduled = new AtomicBoolean();
+    private long mLastListRefresh;
+    private final Runnable mRefreshList = new Runnable() {
+        @Override
+        public void run() {
+            mListRefreshScheduled.set(false);
+            mLastListRefresh = SystemClock.uptimeMillis();
+            if (mDeviceRegistry.publish()) {
+                mLeDeviceListAdapter.notifyDataSetChanged();
+                if (mScanScheduler != null) mScanScheduler.onDevicesUpdated();
+                connectPresentKnownDevices();
+            }
+        }
+    };
+    // Prefilters and records the scan results off the binder and UI threads.
+    private final ScanPrefilter mScanPrefilter = ScanPrefilter.createDefault();
+    private final ScanProcessor mScanProcessor = new ScanProcessor(mScanPrefilter,
+            mDeviceRegistry, new ScanProcessor.Listener() {
+        @Override
+        public void onDevicesUpdated() {
+            scheduleListRefresh();
+        }
+    }, SCAN_QUEUE_CAPACITY);
+    // BluetoothLeScanner with controller-side filters on API 21, startLeScan below.
+    private ScanBackend mScanBackend;
+    // Adapts the scan windows to the discovery progress.
+    private ScanScheduler mScanScheduler;
+    private KnownDeviceStore mKnownDevices;
+    // Last used device, connected directly at launch while the scan confirms it is around.
+    private String mDirectConnectAddress;
+    // The other known devices, connected at launch once a scan saw them.
+    private final ArrayList<String> mLaunchAddresses = new ArrayList<String>();
+    private BluetoothLeService mBluetoothLeService;
+    // True from bindService to unbindService, the service may not be connected meanwhile.
+    private boolean mBound;
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
-                @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, final byte[] scanRecord) {
-                    //final List listServiceUuids = new ArrayList();
-
-                    //ParcelUuid[] UuidsArray = device.getUuids();
-                    List<com.example.bluetoothgatt.AdRecord> records = com.example.bluetoothgatt.AdRecord.parseScanRecord(scanRecord);
-                    Integer i = 0;
-                    byte UuidEliteTrainer[] = {-110, -27, -100, -108, -13, -113, 24, -119, -117, 64, 53, 118, 1, 0, 123, 52};
-
-
-                    // filtro gli UUID di tipo EliteTrainer
-                    for (i=0; i<records.size();i++){
-                        com.example.bluetoothgatt.AdRecord aRecord = records.get(i);
-                        if (aRecord.mType == 7) {
-                            if (aRecord.mLength == 17){
-                                if (Arrays.equals(aRecord.mData, UuidEliteTrainer)){
-                                    runOnUiThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            //listServiceUuids.add(scanRecord.getServiceUuids());
-
-                                            mLeDeviceListAdapter.addDevice(device);
-                                            mLeDeviceListAdapter.notifyDataSetChanged();
-                                        }
-                                    });
-                                }
-                            }
-                        }
-                    }
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) return;
+            // The background discovery runs in the service, which outlives the activity.
+            mBluetoothLeService.registerPresenceListener(mPresenceListener);
+            invalidateOptionsMenu();
+            if (mDirectConnectAddress != null) {
+                final boolean result = mBluetoothLeService.connect(mDirectConnectAddress);
+                Log.d(TAG, "Direct connect request result=" + result);
+                // The other known devices, e.g. the heart rate strap used with the trainer, join
+                // the pool once the scan shows they are around.
+                for (String address : mKnownDevices.getAddresses()) {
+                    if (!address.equals(mDirectConnectAddress)) mLaunchAddresses.add(address);
+                }
+                connectPresentKnownDevices();
+            }
+        }
 
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+    // Called on the scan processing thread of the background discovery.
+    private final PresenceMonitor.Listener mPresenceListener = new PresenceMonitor.Listener() {
+        @Override
+        public void onDevicesUpdated() {
+            scheduleListRefresh();
+        }
 
+        @Override
+        public void onKnownDevicePresent(final String address, final String name,
+                                         int categories) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(DeviceScanActivity.this, getString(
+                            R.string.presence_known_device, name != null ? name : address),
+                            Toast.LENGTH_SHORT).show();
                 }
-            };
+            });
+        }
+    };
+    // Opens the last used device as soon as the direct connection succeeds.
+    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(intent.getAction())
+                    && mDirectConnectAddress != null) {
+                final String address = mDirectConnectAddress;
+                mDirectConnectAddress = null;
+                openDevice(address, mKnownDevices.getName(address));
+            }
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         getActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
+        mScanProcessor.start();
+        mKnownDevices = new KnownDeviceStore(this);
+        mKnownDevices.prune(System.currentTimeMillis());
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -117,6 +189,28 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+        // The user is waiting for the list, favour latency over power.
+        mScanBackend = ScanBackend.create(mBluetoothAdapter, mScanProcessor, mScanPrefilter,
+                ScanBackend.MODE_LOW_LATENCY);
+        mScanScheduler = new ScanScheduler(mScanBackend, mDeviceRegistry, mHandler,
+                new ScanScheduler.Listener() {
+                    @Override
+                    public void onScanWindowChanged(boolean scanning) {
+                    }
+
+                    @Override
+                    public void onScanStopped() {
+                        mScanning = false;
+                        invalidateOptionsMenu();
+                        Log.d(TAG, "Scan results: " + mScanProcessor);
+                    }
+                });
+        if (savedInstanceState == null) {
+            mDirectConnectAddress = mKnownDevices.getLastUsedAddress();
+            LaunchMetrics.onLaunch(mDirectConnectAddress != null);
+        }
+        mBound = bindService(new Intent(this, BluetoothLeService.class), mServiceConnection,
+                BIND_AUTO_CREATE);
     }
 
     @Override
@@ -134,6 +228,11 @@ public class DeviceScanActivity extends ListActivity {
                     R.layout.actionbar_indeterminate_progress);
             menu.findItem(R.id.menu_settings).setVisible(true);
         }
+        final PresenceMonitor presenceMonitor = mBluetoothLeService != null
+                ? mBluetoothLeService.getPresenceMonitor() : null;
+        final MenuItem presence = menu.findItem(R.id.menu_presence);
+        presence.setVisible(presenceMonitor != null && presenceMonitor.isSupported());
+        presence.setChecked(presenceMonitor != null && presenceMonitor.isRunning());
         return true;
     }
 
@@ -141,7 +240,10 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
+                // A manual scan starts over and runs until discovery settles.
+                scanLeDevice(false);
                 mLeDeviceListAdapter.clear();
+                mScanScheduler.clearExpected();
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
@@ -150,6 +252,24 @@ public class DeviceScanActivity extends ListActivity {
             case R.id.menu_settings:
                 Intent intent = new Intent(this, SettingsActivity.class);
                 startActivity(intent);
+                break;
+            case R.id.menu_presence:
+                final PresenceMonitor presenceMonitor = mBluetoothLeService != null
+                        ? mBluetoothLeService.getPresenceMonitor() : null;
+                if (presenceMonitor == null) break;
+                if (presenceMonitor.isRunning()) {
+                    mBluetoothLeService.stopPresenceMonitor();
+                    Toast.makeText(this, getString(R.string.presence_wakeups_saved,
+                            presenceMonitor.getWakeupsSaved()), Toast.LENGTH_SHORT).show();
+                } else {
+                    mBluetoothLeService.startPresenceMonitor();
+                }
+                invalidateOptionsMenu();
+                break;
+            case R.id.menu_studio:
+                scanLeDevice(false);
+                startActivity(new Intent(this, StudioActivity.class));
+                break;
 
         }
         return true;
@@ -168,10 +288,19 @@ public class DeviceScanActivity extends ListActivity {
             }
         }
 
-        // Initializes list view adapter.
+        // Initializes list view adapter.  The devices found before the pause are kept and the
+        // scan stops as soon as the known devices are seen, not every device of the shared
+        // registry, which includes the passers-by of the background discovery.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
+        mDeviceRegistry.publish();
+        mScanScheduler.clearExpected();
+        for (String address : mKnownDevices.getAddresses()) {
+            mScanScheduler.expect(ScanDeviceRegistry.addressToLong(address));
+        }
         scanLeDevice(true);
+        registerReceiver(mGattUpdateReceiver, new IntentFilter(
+                BluetoothLeService.ACTION_GATT_CONNECTED));
     }
 
     @Override
@@ -188,40 +317,79 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
-        mLeDeviceListAdapter.clear();
+        mHandler.removeCallbacks(mRefreshList);
+        mListRefreshScheduled.set(false);
+        unregisterReceiver(mGattUpdateReceiver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mScanProcessor.stop();
+        if (mBluetoothLeService != null) {
+            // The background discovery keeps running in the service if it was started.
+            mBluetoothLeService.unregisterPresenceListener(mPresenceListener);
+            mBluetoothLeService = null;
+        }
+        if (mBound) {
+            unbindService(mServiceConnection);
+            mBound = false;
+        }
     }
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
-        final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
-        if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+        if (mDirectConnectAddress != null) {
+            // Another device was chosen while connecting to the last used one.
+            if (!mDirectConnectAddress.equals(device.getAddress()) && mBluetoothLeService != null) {
+                mBluetoothLeService.closeSession(mDirectConnectAddress);
+            }
+            mDirectConnectAddress = null;
         }
+        openDevice(device.getAddress(), device.getName());
+    }
+
+    private void openDevice(String address, String name) {
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, name);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, address);
+        scanLeDevice(false);
         startActivity(intent);
     }
 
+    // Connects the known devices waiting for the launch that the confirmation scan or the
+    // background discovery saw recently.
+    private void connectPresentKnownDevices() {
+        if (mBluetoothLeService == null || mLaunchAddresses.isEmpty()) return;
+        final long now = SystemClock.elapsedRealtime();
+        for (int i = mLaunchAddresses.size() - 1; i >= 0; i--) {
+            final String address = mLaunchAddresses.get(i);
+            final long lastSeen =
+                    mDeviceRegistry.getLastSeenOf(ScanDeviceRegistry.addressToLong(address));
+            if (lastSeen == 0 || now - lastSeen > PRESENT_WINDOW) continue;
+            mLaunchAddresses.remove(i);
+            Log.d(TAG, "Connect present " + address + " result="
+                    + (mBluetoothLeService.connectSession(address) != null));
+        }
+    }
+
+    // Called on the scan processing thread, posts at most one refresh per LIST_REFRESH_INTERVAL.
+    private void scheduleListRefresh() {
+        if (mListRefreshScheduled.compareAndSet(false, true)) {
+            final long elapsed = SystemClock.uptimeMillis() - mLastListRefresh;
+            mHandler.postDelayed(mRefreshList, Math.max(0, LIST_REFRESH_INTERVAL - elapsed));
+        }
+    }
+
     private void scanLeDevice(final boolean enable) {
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mScanScheduler.start();
+            mScanning = mScanScheduler.isActive();
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanScheduler.stop();
         }
         invalidateOptionsMenu();
     }
@@ -231,44 +399,38 @@ public class DeviceScanActivity extends ListActivity {
         TextView deviceAddress;
     }
 
-    // Adapter for holding devices found through scanning.
+    // Adapter for holding devices found through scanning, backed by the device registry.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if (!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
-        }
-
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mDeviceRegistry.getDevice(position);
         }
 
         public void clear() {
-            mLeDevices.clear();
+            mDeviceRegistry.clear();
+            mDeviceRegistry.publish();
+            notifyDataSetChanged();
         }
 
         @Override
         public int getCount() {
-            return mLeDevices.size();
+            return mDeviceRegistry.getCount();
         }
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mDeviceRegistry.getDevice(i);
         }
 
         @Override
         public long getItemId(int i) {
-            return i;
+            return mDeviceRegistry.getAddress(i);
         }
 
         @Override
@@ -285,8 +447,9 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            BluetoothDevice device = mDeviceRegistry.getDevice(i);
+            String deviceName = mDeviceRegistry.getName(i);
+            if (deviceName == null) deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
@@ -0,0 +1,362 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Names of the GATT services, characteristics and descriptors, looked up by UUID value.
+ * <p/>
+ * The Bluetooth SIG assigned numbers are kept as a sorted {@code int[]} of 16-bit aliases with a
+ * parallel array of names, and searched with a binary search; the few vendor attributes are
+ * kept the same way, keyed by the two halves of their 128-bit UUID.  The tables live in nested
+ * holder classes, so they are only loaded by the first lookup and never at start-up.
+ * <p/>
+ * The SIG table below is generated from the assigned numbers lists (services, characteristics,
+ * descriptors).  Keep the aliases sorted when editing it by hand.
+ */
+public final class GattAttributeNames {
+
+    private GattAttributeNames() {
+    }
+
+    /**
+     * Returns the name of an attribute.
+     *
+     * @param uuid        The attribute UUID.
+     * @param defaultName Returned if the attribute is not known.
+     */
+    public static String lookup(UUID uuid, String defaultName) {
+        return lookup(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), defaultName);
+    }
+
+    public static String lookup(long msb, long lsb, String defaultName) {
+        if (UuidIntMap.isSigBased(msb, lsb)) {
+            final int alias = UuidIntMap.sigAlias(msb);
+            final int index = Arrays.binarySearch(SigTable.SIG_ALIASES, alias);
+            return index >= 0 ? SigTable.SIG_NAMES[index] : defaultName;
+        }
+        final long[] msbs = VendorTable.VENDOR_MSB;
+        int low = 0;
+        int high = msbs.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(msbs[mid], VendorTable.VENDOR_LSB[mid], msb, lsb);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return VendorTable.VENDOR_NAMES[mid];
+            }
+        }
+        return defaultName;
+    }
+
+    private static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        if (msb1 != msb2) return msb1 < msb2 ? -1 : 1;
+        if (lsb1 != lsb2) return lsb1 < lsb2 ? -1 : 1;
+        return 0;
+    }
+
+    // Vendor specific attributes, sorted by (msb, lsb).
+    private static final class VendorTable {
+        private static final long[] VENDOR_MSB = {
+                0x347b00017635408bL,
+                0x347b00107635408bL,
+                0x347b00117635408bL
+        };
+        private static final long[] VENDOR_LSB = {
+                0x89188ff3949ce592L,
+                0x89188ff3949ce592L,
+                0x89188ff3949ce592L
+        };
+        private static final String[] VENDOR_NAMES = {
+                "Elite Real Trainer Service",
+                "Elite Trainer Brake",
+                "Elite Out of Range Flag"
+        };
+    }
+
+    // Bluetooth SIG assigned numbers, sorted by 16-bit alias.
+    private static final class SigTable {
+        private static final int[] SIG_ALIASES = {
+                0x1800, 0x1801, 0x1802, 0x1803, 0x1804, 0x1805, 0x1806, 0x1807, 0x1808, 0x1809, 0x180A,
+                0x180D, 0x180E, 0x180F, 0x1810, 0x1811, 0x1812, 0x1813, 0x1814, 0x1815, 0x1816, 0x1818,
+                0x1819, 0x181A, 0x181B, 0x181C, 0x181D, 0x181E, 0x181F, 0x1820, 0x1821, 0x1822, 0x1823,
+                0x1824, 0x1825, 0x1826, 0x1827, 0x1828, 0x1829, 0x183A, 0x183B, 0x183C, 0x183E, 0x2900,
+                0x2901, 0x2902, 0x2903, 0x2904, 0x2905, 0x2906, 0x2907, 0x2908, 0x2909, 0x290A, 0x290B,
+                0x290C, 0x290D, 0x290E, 0x2A00, 0x2A01, 0x2A02, 0x2A03, 0x2A04, 0x2A05, 0x2A06, 0x2A07,
+                0x2A08, 0x2A09, 0x2A0A, 0x2A0C, 0x2A0D, 0x2A0E, 0x2A0F, 0x2A11, 0x2A12, 0x2A13, 0x2A14,
+                0x2A16, 0x2A17, 0x2A18, 0x2A19, 0x2A1C, 0x2A1D, 0x2A1E, 0x2A21, 0x2A22, 0x2A23, 0x2A24,
+                0x2A25, 0x2A26, 0x2A27, 0x2A28, 0x2A29, 0x2A2A, 0x2A2B, 0x2A2C, 0x2A31, 0x2A32, 0x2A33,
+                0x2A34, 0x2A35, 0x2A36, 0x2A37, 0x2A38, 0x2A39, 0x2A3F, 0x2A40, 0x2A41, 0x2A42, 0x2A43,
+                0x2A44, 0x2A45, 0x2A46, 0x2A47, 0x2A48, 0x2A49, 0x2A4A, 0x2A4B, 0x2A4C, 0x2A4D, 0x2A4E,
+                0x2A4F, 0x2A50, 0x2A51, 0x2A52, 0x2A53, 0x2A54, 0x2A55, 0x2A5A, 0x2A5B, 0x2A5C, 0x2A5D,
+                0x2A5E, 0x2A5F, 0x2A60, 0x2A63, 0x2A64, 0x2A65, 0x2A66, 0x2A67, 0x2A68, 0x2A69, 0x2A6A,
+                0x2A6B, 0x2A6C, 0x2A6D, 0x2A6E, 0x2A6F, 0x2A70, 0x2A71, 0x2A72, 0x2A73, 0x2A74, 0x2A75,
+                0x2A76, 0x2A77, 0x2A78, 0x2A79, 0x2A7A, 0x2A7B, 0x2A7D, 0x2A7E, 0x2A7F, 0x2A80, 0x2A81,
+                0x2A82, 0x2A83, 0x2A84, 0x2A85, 0x2A86, 0x2A87, 0x2A88, 0x2A89, 0x2A8A, 0x2A8B, 0x2A8C,
+                0x2A8D, 0x2A8E, 0x2A8F, 0x2A90, 0x2A91, 0x2A92, 0x2A93, 0x2A94, 0x2A95, 0x2A96, 0x2A97,
+                0x2A98, 0x2A99, 0x2A9A, 0x2A9B, 0x2A9C, 0x2A9D, 0x2A9E, 0x2A9F, 0x2AA0, 0x2AA1, 0x2AA2,
+                0x2AA3, 0x2AA4, 0x2AA5, 0x2AA6, 0x2AA7, 0x2AA8, 0x2AA9, 0x2AAA, 0x2AAB, 0x2AAC, 0x2AAD,
+                0x2AAE, 0x2AAF, 0x2AB0, 0x2AB1, 0x2AB2, 0x2AB3, 0x2AB4, 0x2AB5, 0x2AB6, 0x2AB7, 0x2AB8,
+                0x2AB9, 0x2ABA, 0x2ABB, 0x2ABC, 0x2ABD, 0x2ABE, 0x2ABF, 0x2AC0, 0x2AC1, 0x2AC2, 0x2AC3,
+                0x2AC4, 0x2AC5, 0x2AC6, 0x2AC7, 0x2AC8, 0x2AC9, 0x2ACC, 0x2ACD, 0x2ACE, 0x2ACF, 0x2AD0,
+                0x2AD1, 0x2AD2, 0x2AD3, 0x2AD4, 0x2AD5, 0x2AD6, 0x2AD7, 0x2AD8, 0x2AD9, 0x2ADA
+        };
+        private static final String[] SIG_NAMES = {
+                "Generic Access Service",
+                "Generic Attribute Service",
+                "Immediate Alert Service",
+                "Link Loss Service",
+                "Tx Power Service",
+                "Current Time Service",
+                "Reference Time Update Service",
+                "Next DST Change Service",
+                "Glucose Service",
+                "Health Thermometer Service",
+                "Device Information Service",
+                "Heart Rate Service",
+                "Phone Alert Status Service",
+                "Battery Service",
+                "Blood Pressure Service",
+                "Alert Notification Service",
+                "Human Interface Device Service",
+                "Scan Parameters Service",
+                "Running Speed and Cadence Service",
+                "Automation IO Service",
+                "Cycling Speed and Cadence Service",
+                "Cycling Power Service",
+                "Location and Navigation Service",
+                "Environmental Sensing Service",
+                "Body Composition Service",
+                "User Data Service",
+                "Weight Scale Service",
+                "Bond Management Service",
+                "Continuous Glucose Monitoring Service",
+                "Internet Protocol Support Service",
+                "Indoor Positioning Service",
+                "Pulse Oximeter Service",
+                "HTTP Proxy Service",
+                "Transport Discovery Service",
+                "Object Transfer Service",
+                "Fitness Machine Service",
+                "Mesh Provisioning Service",
+                "Mesh Proxy Service",
+                "Reconnection Configuration Service",
+                "Insulin Delivery Service",
+                "Binary Sensor Service",
+                "Emergency Configuration Service",
+                "Physical Activity Monitor Service",
+                "Characteristic Extended Properties",
+                "Characteristic User Description",
+                "Client Characteristic Configuration",
+                "Server Characteristic Configuration",
+                "Characteristic Presentation Format",
+                "Characteristic Aggregate Format",
+                "Valid Range",
+                "External Report Reference",
+                "Report Reference",
+                "Number of Digitals",
+                "Value Trigger Setting",
+                "Environmental Sensing Configuration",
+                "Environmental Sensing Measurement",
+                "Environmental Sensing Trigger Setting",
+                "Time Trigger Setting",
+                "Device Name",
+                "Appearance",
+                "Peripheral Privacy Flag",
+                "Reconnection Address",
+                "Peripheral Preferred Connection Parameters",
+                "Service Changed",
+                "Alert Level",
+                "Tx Power Level",
+                "Date Time",
+                "Day of Week",
+                "Day Date Time",
+                "Exact Time 256",
+                "DST Offset",
+                "Time Zone",
+                "Local Time Information",
+                "Time with DST",
+                "Time Accuracy",
+                "Time Source",
+                "Reference Time Information",
+                "Time Update Control Point",
+                "Time Update State",
+                "Glucose Measurement",
+                "Battery Level",
+                "Temperature Measurement",
+                "Temperature Type",
+                "Intermediate Temperature",
+                "Measurement Interval",
+                "Boot Keyboard Input Report",
+                "System ID",
+                "Model Number String",
+                "Serial Number String",
+                "Firmware Revision String",
+                "Hardware Revision String",
+                "Software Revision String",
+                "Manufacturer Name String",
+                "IEEE 11073-20601 Regulatory Certification Data List",
+                "Current Time",
+                "Magnetic Declination",
+                "Scan Refresh",
+                "Boot Keyboard Output Report",
+                "Boot Mouse Input Report",
+                "Glucose Measurement Context",
+                "Blood Pressure Measurement",
+                "Intermediate Cuff Pressure",
+                "Heart Rate Measurement",
+                "Body Sensor Location",
+                "Heart Rate Control Point",
+                "Alert Status",
+                "Ringer Control Point",
+                "Ringer Setting",
+                "Alert Category ID Bit Mask",
+                "Alert Category ID",
+                "Alert Notification Control Point",
+                "Unread Alert Status",
+                "New Alert",
+                "Supported New Alert Category",
+                "Supported Unread Alert Category",
+                "Blood Pressure Feature",
+                "HID Information",
+                "Report Map",
+                "HID Control Point",
+                "Report",
+                "Protocol Mode",
+                "Scan Interval Window",
+                "PnP ID",
+                "Glucose Feature",
+                "Record Access Control Point",
+                "RSC Measurement",
+                "RSC Feature",
+                "SC Control Point",
+                "Aggregate",
+                "CSC Measurement",
+                "CSC Feature",
+                "Sensor Location",
+                "PLX Spot-Check Measurement",
+                "PLX Continuous Measurement",
+                "PLX Features",
+                "Cycling Power Measurement",
+                "Cycling Power Vector",
+                "Cycling Power Feature",
+                "Cycling Power Control Point",
+                "Location and Speed",
+                "Navigation",
+                "Position Quality",
+                "LN Feature",
+                "LN Control Point",
+                "Elevation",
+                "Pressure",
+                "Temperature",
+                "Humidity",
+                "True Wind Speed",
+                "True Wind Direction",
+                "Apparent Wind Speed",
+                "Apparent Wind Direction",
+                "Gust Factor",
+                "Pollen Concentration",
+                "UV Index",
+                "Irradiance",
+                "Rainfall",
+                "Wind Chill",
+                "Heat Index",
+                "Dew Point",
+                "Descriptor Value Changed",
+                "Aerobic Heart Rate Lower Limit",
+                "Aerobic Threshold",
+                "Age",
+                "Anaerobic Heart Rate Lower Limit",
+                "Anaerobic Heart Rate Upper Limit",
+                "Anaerobic Threshold",
+                "Aerobic Heart Rate Upper Limit",
+                "Date of Birth",
+                "Date of Threshold Assessment",
+                "Email Address",
+                "Fat Burn Heart Rate Lower Limit",
+                "Fat Burn Heart Rate Upper Limit",
+                "First Name",
+                "Five Zone Heart Rate Limits",
+                "Gender",
+                "Heart Rate Max",
+                "Height",
+                "Hip Circumference",
+                "Last Name",
+                "Maximum Recommended Heart Rate",
+                "Resting Heart Rate",
+                "Sport Type for Aerobic and Anaerobic Thresholds",
+                "Three Zone Heart Rate Limits",
+                "Two Zone Heart Rate Limit",
+                "VO2 Max",
+                "Waist Circumference",
+                "Weight",
+                "Database Change Increment",
+                "User Index",
+                "Body Composition Feature",
+                "Body Composition Measurement",
+                "Weight Measurement",
+                "Weight Scale Feature",
+                "User Control Point",
+                "Magnetic Flux Density - 2D",
+                "Magnetic Flux Density - 3D",
+                "Language",
+                "Barometric Pressure Trend",
+                "Bond Management Control Point",
+                "Bond Management Feature",
+                "Central Address Resolution",
+                "CGM Measurement",
+                "CGM Feature",
+                "CGM Status",
+                "CGM Session Start Time",
+                "CGM Session Run Time",
+                "CGM Specific Ops Control Point",
+                "Indoor Positioning Configuration",
+                "Latitude",
+                "Longitude",
+                "Local North Coordinate",
+                "Local East Coordinate",
+                "Floor Number",
+                "Altitude",
+                "Uncertainty",
+                "Location Name",
+                "URI",
+                "HTTP Headers",
+                "HTTP Status Code",
+                "HTTP Entity Body",
+                "HTTP Control Point",
+                "HTTPS Security",
+                "TDS Control Point",
+                "OTS Feature",
+                "Object Name",
+                "Object Type",
+                "Object Size",
+                "Object First-Created",
+                "Object Last-Modified",
+                "Object ID",
+                "Object Properties",
+                "Object Action Control Point",
+                "Object List Control Point",
+                "Object List Filter",
+                "Object Changed",
+                "Resolvable Private Address Only",
+                "Fitness Machine Feature",
+                "Treadmill Data",
+                "Cross Trainer Data",
+                "Step Climber Data",
+                "Stair Climber Data",
+                "Rower Data",
+                "Indoor Bike Data",
+                "Training Status",
+                "Supported Speed Range",
+                "Supported Inclination Range",
+                "Supported Resistance Level Range",
+                "Supported Heart Rate Range",
+                "Supported Power Range",
+                "Fitness Machine Control Point",
+                "Fitness Machine Status"
+        };
+    }
+}
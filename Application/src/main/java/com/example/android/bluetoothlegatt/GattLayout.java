@@ -0,0 +1,59 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compact encoding of a discovered GATT layout, to tell whether a service discovery changed
+ * it.
+ * <p/>
+ * A layout lists the services with, for each characteristic, its UUID, instance id (the
+ * attribute handle on recent stacks) and properties.  {@link GattSession} keeps the layout
+ * of its last discovery in memory only, the layouts are not persisted.
+ */
+public final class GattLayout {
+
+    private GattLayout() {
+    }
+
+    /**
+     * Encodes a layout: service count, then for each service its UUID, instance id, type and
+     * characteristic count, followed by the UUID, instance id and properties of each
+     * characteristic.
+     */
+    public static byte[] encode(List<BluetoothGattService> services) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(services.size());
+            for (BluetoothGattService service : services) {
+                writeUuid(out, service.getUuid());
+                out.writeShort(service.getInstanceId());
+                out.writeByte(service.getType());
+                final List<BluetoothGattCharacteristic> characteristics =
+                        service.getCharacteristics();
+                out.writeShort(characteristics.size());
+                for (BluetoothGattCharacteristic characteristic : characteristics) {
+                    writeUuid(out, characteristic.getUuid());
+                    out.writeShort(characteristic.getInstanceId());
+                    out.writeByte(characteristic.getProperties());
+                }
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+
+/**
+ * The GATT client operations a {@link GattSession} drives, as offered by
+ * {@code BluetoothGatt}.
+ * <p/>
+ * {@link BluetoothGattLink} implements them on a real connection.  The load test implements
+ * them on simulated trainers, which deliver their events to the {@code BluetoothGattCallback}
+ * of the session like the stack does, with a null {@code BluetoothGatt}.
+ */
+public interface GattLink {
+    boolean connect();
+
+    void disconnect();
+
+    void close();
+
+    List<BluetoothGattService> getServices();
+
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                          boolean enabled);
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+    boolean discoverServices();
+
+    /**
+     * Only called on API 21 and above.
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * Only called on API 21 and above.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * Opens a new connection to a device.
+     */
+    interface Opener {
+        /**
+         * @return The link, or null if the connection could not be initiated.
+         */
+        GattLink open(BluetoothGattCallback callback);
+    }
+}
@@ -0,0 +1,465 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serializes the GATT operations of one connection.
+ * <p/>
+ * Android keeps a single outstanding operation per connection and silently drops the ones
+ * issued meanwhile, so reads, writes, descriptor writes, MTU/priority requests and service
+ * discoveries are queued here and issued one at a time.  The next operation is issued from the
+ * completion callback of the previous one.  Each operation has a timeout after which it is
+ * retried, up to {@link #MAX_RETRIES} times, as are the operations the stack refuses to start
+ * or completes with an error.
+ * <p/>
+ * A completion is matched to the operation in flight by its type and by the characteristic or
+ * descriptor it is about.  The first completion matching an attempt that timed out is the late
+ * completion of that attempt, not of its retry: it is dropped, so that it neither completes the
+ * retry with the wrong latency nor issues the next operation early.
+ * <p/>
+ * The completion methods ({@code onCharacteristicRead} etc.) must be called from the matching
+ * {@code BluetoothGattCallback} methods.
+ */
+public class GattOperationQueue {
+    public static final int OP_READ = 0;
+    public static final int OP_WRITE = 1;
+    public static final int OP_WRITE_DESCRIPTOR = 2;
+    public static final int OP_REQUEST_MTU = 3;
+    public static final int OP_REQUEST_PRIORITY = 4;
+    public static final int OP_DISCOVER_SERVICES = 5;
+
+    // Statuses reported to the callbacks besides the GATT ones.
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_FAILED = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+    private static final long OP_TIMEOUT = 2000;
+    // A discovery exchanges many requests with the device.
+    private static final long DISCOVERY_TIMEOUT = 10000;
+    private static final long RETRY_DELAY = 50;
+    private static final int MAX_RETRIES = 2;
+    // The stack gives up on an ATT request after 30 s, no completion comes later.
+    private static final long LATE_COMPLETION_WINDOW = 30000;
+
+    private final Handler mHandler;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private GattLink mGatt;
+    private Operation mCurrent;
+    // Last attempt that timed out, whose completion may still come, and when it timed out.
+    private Operation mTimedOut;
+    private long mTimedOutTime;
+
+    // Statistics, guarded by "this".
+    private long mStatsStart;
+    private long mCompletedCount;
+    private long mFailedCount;
+    private long mTimeoutCount;
+    private long mRetryCount;
+    private long mLateCount;
+    private long mTotalLatency;
+    private long mMaxLatency;
+    private int mMaxDepth;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+    private final Runnable mIssueNext = new Runnable() {
+        @Override
+        public void run() {
+            issueNext();
+        }
+    };
+
+    public GattOperationQueue() {
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Sets the connection the operations are issued on, or null when it is closed.  The
+     * pending operations are cancelled.
+     */
+    public void setGatt(GattLink gatt) {
+        clear();
+        synchronized (this) {
+            mGatt = gatt;
+        }
+    }
+
+    public boolean read(BluetoothGattCharacteristic characteristic) {
+        return enqueue(new Operation(OP_READ, characteristic, null, null, 0, null));
+    }
+
+    /**
+     * Queues a characteristic write.  The value is set on the characteristic when the write is
+     * issued, so several writes to the same characteristic can be queued.
+     *
+     * @param writeType One of the {@code BluetoothGattCharacteristic.WRITE_TYPE_} values.
+     * @param callback  Notified when the write completes or fails, or null.
+     */
+    public boolean write(BluetoothGattCharacteristic characteristic, byte[] value, int writeType,
+                         Callback callback) {
+        return enqueue(new Operation(OP_WRITE, characteristic, null, value, writeType, callback));
+    }
+
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        return enqueue(new Operation(OP_WRITE_DESCRIPTOR, null, descriptor, value, 0, null));
+    }
+
+    /**
+     * Queues an MTU request, ignored below API 21.
+     */
+    public boolean requestMtu(int mtu, Callback callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        return enqueue(new Operation(OP_REQUEST_MTU, null, null, null, mtu, callback));
+    }
+
+    /**
+     * Queues a connection priority request, ignored below API 21.  The stack does not report
+     * its completion, the next operation is issued right after it.
+     */
+    public boolean requestConnectionPriority(int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        return enqueue(new Operation(OP_REQUEST_PRIORITY, null, null, null, priority, null));
+    }
+
+    /**
+     * Queues a service discovery, after the operations already queued.
+     */
+    public boolean discoverServices(Callback callback) {
+        return enqueue(new Operation(OP_DISCOVER_SERVICES, null, null, null, 0, callback));
+    }
+
+    /**
+     * Cancels the pending operations and forgets the one in flight.
+     */
+    public void clear() {
+        final Operation[] cancelled;
+        synchronized (this) {
+            mHandler.removeCallbacks(mTimeout);
+            mHandler.removeCallbacks(mIssueNext);
+            mTimedOut = null;
+            if (mCurrent != null) {
+                mPending.addFirst(mCurrent);
+                mCurrent = null;
+            }
+            cancelled = mPending.toArray(new Operation[mPending.size()]);
+            mPending.clear();
+        }
+        for (Operation operation : cancelled) {
+            if (operation.mCallback != null) {
+                operation.mCallback.onComplete(STATUS_CANCELLED);
+            }
+        }
+    }
+
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        complete(OP_READ, characteristic, null, status);
+    }
+
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        complete(OP_WRITE, characteristic, null, status);
+    }
+
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        complete(OP_WRITE_DESCRIPTOR, null, descriptor, status);
+    }
+
+    public void onMtuChanged(int mtu, int status) {
+        complete(OP_REQUEST_MTU, null, null, status);
+    }
+
+    public void onServicesDiscovered(int status) {
+        complete(OP_DISCOVER_SERVICES, null, null, status);
+    }
+
+    public synchronized int getDepth() {
+        return mPending.size() + (mCurrent != null ? 1 : 0);
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * @return The late completions of timed out attempts, which were dropped.
+     */
+    public synchronized long getLateCompletionCount() {
+        return mLateCount;
+    }
+
+    /**
+     * @return The average time from queueing to completion, in milliseconds.
+     */
+    public synchronized long getAverageLatency() {
+        return mCompletedCount == 0 ? 0 : mTotalLatency / mCompletedCount;
+    }
+
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /**
+     * @return The operations completed per second since the first one was queued.
+     */
+    public synchronized float getOperationsPerSecond() {
+        if (mStatsStart == 0) return 0;
+        final long elapsed = SystemClock.elapsedRealtime() - mStatsStart;
+        return elapsed <= 0 ? 0 : mCompletedCount * 1000f / elapsed;
+    }
+
+    public synchronized void resetStats() {
+        mStatsStart = 0;
+        mCompletedCount = 0;
+        mFailedCount = 0;
+        mTimeoutCount = 0;
+        mRetryCount = 0;
+        mLateCount = 0;
+        mTotalLatency = 0;
+        mMaxLatency = 0;
+        mMaxDepth = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "completed " + mCompletedCount + " (" + getOperationsPerSecond() + " ops/s)"
+                + ", failed " + mFailedCount + ", timeouts " + mTimeoutCount
+                + ", retries " + mRetryCount + ", late " + mLateCount + ", latency avg " + getAverageLatency()
+                + " ms max " + mMaxLatency + " ms, depth max " + mMaxDepth;
+    }
+
+    private boolean enqueue(Operation operation) {
+        synchronized (this) {
+            if (mGatt == null) return false;
+            operation.mQueuedTime = SystemClock.elapsedRealtime();
+            if (mStatsStart == 0) mStatsStart = operation.mQueuedTime;
+            mPending.addLast(operation);
+            final int depth = mPending.size() + (mCurrent != null ? 1 : 0);
+            if (depth > mMaxDepth) mMaxDepth = depth;
+            if (mCurrent != null) return true;
+        }
+        issueNext();
+        return true;
+    }
+
+    // Issues the next pending operation if none is in flight.
+    private void issueNext() {
+        while (true) {
+            final Operation operation;
+            final GattLink gatt;
+            synchronized (this) {
+                if (mCurrent != null || mPending.isEmpty() || mGatt == null) return;
+                operation = mPending.pollFirst();
+                mCurrent = operation;
+                gatt = mGatt;
+            }
+            final boolean started = start(gatt, operation);
+            synchronized (this) {
+                if (mCurrent != operation) return;
+                if (started && operation.mType == OP_REQUEST_PRIORITY) {
+                    // No completion callback, move on.
+                    mCurrent = null;
+                    record(operation, true);
+                    continue;
+                }
+                if (started) {
+                    mHandler.postDelayed(mTimeout, operation.mType == OP_DISCOVER_SERVICES
+                            ? DISCOVERY_TIMEOUT : OP_TIMEOUT);
+                    return;
+                }
+                // The stack refused the operation, usually because it is still busy.
+                mCurrent = null;
+                if (operation.mAttempts <= MAX_RETRIES) {
+                    mRetryCount++;
+                    mPending.addFirst(operation);
+                    mHandler.postDelayed(mIssueNext, RETRY_DELAY);
+                    return;
+                }
+                record(operation, false);
+            }
+            Log.w(TAG, "Operation " + operation.mType + " could not be started");
+            if (operation.mCallback != null) operation.mCallback.onComplete(STATUS_FAILED);
+        }
+    }
+
+    private boolean start(GattLink gatt, Operation operation) {
+        operation.mAttempts++;
+        switch (operation.mType) {
+            case OP_READ:
+                return gatt.readCharacteristic(operation.mCharacteristic);
+            case OP_WRITE:
+                operation.mCharacteristic.setValue(operation.mValue);
+                operation.mCharacteristic.setWriteType(operation.mArgument);
+                return gatt.writeCharacteristic(operation.mCharacteristic);
+            case OP_WRITE_DESCRIPTOR:
+                operation.mDescriptor.setValue(operation.mValue);
+                return gatt.writeDescriptor(operation.mDescriptor);
+            case OP_REQUEST_MTU:
+                return gatt.requestMtu(operation.mArgument);
+            case OP_REQUEST_PRIORITY:
+                return gatt.requestConnectionPriority(operation.mArgument);
+            case OP_DISCOVER_SERVICES:
+                return gatt.discoverServices();
+            default:
+                return false;
+        }
+    }
+
+    private void complete(int type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, int status) {
+        final Operation operation;
+        synchronized (this) {
+            if (mTimedOut != null && (SystemClock.elapsedRealtime() - mTimedOutTime
+                    > LATE_COMPLETION_WINDOW)) {
+                mTimedOut = null;
+            }
+            if (mTimedOut != null && mTimedOut.matches(type, characteristic, descriptor)) {
+                // Late completion of the attempt that timed out.  If a retry of it is in
+                // flight, it keeps waiting for its own completion or timeout.
+                mTimedOut = null;
+                mLateCount++;
+                Log.w(TAG, "Dropped the late completion of operation " + type);
+                return;
+            }
+            operation = mCurrent;
+            if (operation == null || !operation.matches(type, characteristic, descriptor)) {
+                // Not queued here.
+                return;
+            }
+            mHandler.removeCallbacks(mTimeout);
+            mCurrent = null;
+            if (status != BluetoothGatt.GATT_SUCCESS && operation.mAttempts <= MAX_RETRIES) {
+                mRetryCount++;
+                mPending.addFirst(operation);
+            } else {
+                record(operation, status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+        // Pipelines the next operation from the callback thread.
+        issueNext();
+        if (operation.mCallback != null && (status == BluetoothGatt.GATT_SUCCESS
+                || operation.mAttempts > MAX_RETRIES)) {
+            operation.mCallback.onComplete(status);
+        }
+    }
+
+    private void onTimeout() {
+        final Operation operation;
+        synchronized (this) {
+            operation = mCurrent;
+            if (operation == null) return;
+            mTimeoutCount++;
+            mCurrent = null;
+            mTimedOut = operation;
+            mTimedOutTime = SystemClock.elapsedRealtime();
+            if (operation.mAttempts <= MAX_RETRIES) {
+                mRetryCount++;
+                mPending.addFirst(operation);
+            } else {
+                record(operation, false);
+            }
+        }
+        Log.w(TAG, "Operation " + operation.mType + " timed out, attempt " + operation.mAttempts);
+        issueNext();
+        if (operation.mCallback != null && operation.mAttempts > MAX_RETRIES) {
+            operation.mCallback.onComplete(STATUS_TIMEOUT);
+        }
+    }
+
+    // Called with the lock held.
+    private void record(Operation operation, boolean success) {
+        if (!success) {
+            mFailedCount++;
+            return;
+        }
+        final long latency = SystemClock.elapsedRealtime() - operation.mQueuedTime;
+        mCompletedCount++;
+        mTotalLatency += latency;
+        if (latency > mMaxLatency) mMaxLatency = latency;
+    }
+
+    /**
+     * Notified of the outcome of an operation, on the thread that completed it.
+     */
+    public interface Callback {
+        /**
+         * @param status {@code BluetoothGatt.GATT_SUCCESS}, another GATT status or one of the
+         *               {@code STATUS_} values of the queue.
+         */
+        void onComplete(int status);
+    }
+
+    private static class Operation {
+        final int mType;
+        final BluetoothGattCharacteristic mCharacteristic;
+        final BluetoothGattDescriptor mDescriptor;
+        final byte[] mValue;
+        // Write type, MTU or connection priority.
+        final int mArgument;
+        final Callback mCallback;
+        long mQueuedTime;
+        int mAttempts;
+
+        Operation(int type, BluetoothGattCharacteristic characteristic,
+                  BluetoothGattDescriptor descriptor, byte[] value, int argument,
+                  Callback callback) {
+            mType = type;
+            mCharacteristic = characteristic;
+            mDescriptor = descriptor;
+            mValue = value;
+            mArgument = argument;
+            mCallback = callback;
+        }
+
+        /**
+         * @return True if a completion of the given type, about the given characteristic or
+         * descriptor, is the one of this operation.
+         */
+        boolean matches(int type, BluetoothGattCharacteristic characteristic,
+                        BluetoothGattDescriptor descriptor) {
+            if (type != mType) return false;
+            if (mCharacteristic != null) return isSame(mCharacteristic, characteristic);
+            if (mDescriptor != null) {
+                return descriptor != null && (descriptor == mDescriptor
+                        || mDescriptor.getUuid().equals(descriptor.getUuid())
+                        && isSame(mDescriptor.getCharacteristic(),
+                        descriptor.getCharacteristic()));
+            }
+            return true;
+        }
+
+        private static boolean isSame(BluetoothGattCharacteristic a,
+                                      BluetoothGattCharacteristic b) {
+            return a == b || a != null && b != null && a.getUuid().equals(b.getUuid())
+                    && a.getInstanceId() == b.getInstanceId();
+        }
+    }
+}
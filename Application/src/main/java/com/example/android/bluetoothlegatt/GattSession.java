@@ -0,0 +1,748 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One connection of the {@link BluetoothLeService} pool.
+ * <p/>
+ * Each session has its own {@code BluetoothGatt} and callback, connection state, GATT
+ * operation queue, brake command channel, connection policy and decoder state, so that the
+ * sessions do not share any mutable state.  The decoded metrics are published both to the
+ * session bus and to the bus merging all the sessions.
+ * <p/>
+ * The connections are initiated by the {@link ReconnectEngine} of the session, through the
+ * {@link ConnectGate} of the pool.  The session stays wanted until {@link #disconnect} or
+ * {@link #close}: a link that drops is restored by the engine, and once the engine gave up
+ * {@link #reconnectIfIdle()} tries again when the device shows up.
+ * <p/>
+ * After a reconnection the session is the one enabling again the notifications that were on
+ * and resending the last brake target, see {@link #hasResumedNotifications()}.  A reused
+ * {@code BluetoothGatt} still holds the services of its last discovery, the session then
+ * resumes at once while the service discovery queued behind confirms the layout, and the
+ * services are only reported again if it changed.  A new {@code BluetoothGatt} has no usable
+ * services before its discovery completes, whatever was known of the device.
+ */
+public class GattSession {
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    private final static String TAG = GattSession.class.getSimpleName();
+    private final static String TAG_SET_POWER = "BluetoothLeService.potenza";
+    private final static UUID CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+    // Period of the check for a speed or cadence sensor that stopped notifying.
+    private static final long STALE_CHECK_INTERVAL = 1000;
+
+    private final int mId;
+    private final String mAddress;
+    private final Context mContext;
+    private final Host mHost;
+    // Decoder and descriptor policy of the known characteristics, shared read-only.
+    private final CharacteristicRegistry mCharacteristics;
+    private final MetricsBus mMergedBus;
+    private final MetricsBus mMetricsBus = new MetricsBus();
+    private GattLink mGatt;
+    // Opens the connections to the device, set by connect().
+    private GattLink.Opener mOpener;
+    private volatile int mState = STATE_DISCONNECTED;
+    // True from connect() to disconnect() or close(), the link is then restored if lost.
+    private volatile boolean mWanted;
+    // Set when the link is lost, until the first sensor sample after the reconnection.
+    private volatile boolean mAwaitingFirstSample;
+    // True when the session resumed with the services of the previous discovery, until
+    // discovered again.
+    private volatile boolean mResumedEarly;
+    // True once the notifications of the previous connection are enabled again.
+    private volatile boolean mResumedNotifications;
+    // Encoded layout of the last discovery, only touched on the binder thread.
+    private byte[] mLayout;
+    // What the session resumes after a reconnection, guarded by "this": the characteristics
+    // whose notifications are enabled and the last brake target.
+    private final ArrayList<UUID> mNotifying = new ArrayList<UUID>();
+    private UUID mBrakeUuid;
+    private int mBrakeMode;
+    private int mBrakeValue;
+    private volatile boolean mLegacyDataBroadcasts;
+
+    // Serializes the GATT operations of the connection.
+    private final GattOperationQueue mGattQueue = new GattOperationQueue();
+    // Connection priority and MTU, adapted to the ride.
+    private final ConnectionMetrics mConnectionMetrics = new ConnectionMetrics();
+    private final ConnectionPolicy mConnectionPolicy =
+            new ConnectionPolicy(mGattQueue, mConnectionMetrics);
+    // Latest-wins, rate limited brake targets of the Elite trainer.
+    private final BrakeCommandChannel mBrakeChannel = new BrakeCommandChannel(mGattQueue);
+    // Reusable holders for the decoded notifications, see SensorDecoder.
+    private final CscSample mCscSample = new CscSample();
+    private final PowerSample mPowerSample = new PowerSample();
+    private final HeartRateSample mHeartRateSample = new HeartRateSample();
+    // Speed and cadence state of the connected sensor.
+    private final SpeedCadenceCalculator mSpeedCadence = new SpeedCadenceCalculator();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mStaleCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mState != STATE_CONNECTED) return;
+            // A sensor that stops notifying never updates its rates, drop them to zero.
+            final int stale = mSpeedCadence.checkStale(SystemClock.elapsedRealtime());
+            if ((stale & SpeedCadenceCalculator.STALE_SPEED) != 0) {
+                mMetricsBus.publishSpeed(mId, 0);
+                mMergedBus.publishSpeed(mId, 0);
+            }
+            if ((stale & SpeedCadenceCalculator.STALE_CADENCE) != 0) {
+                mMetricsBus.publishCadence(mId, 0);
+                mMergedBus.publishCadence(mId, 0);
+            }
+            mHandler.postDelayed(this, STALE_CHECK_INTERVAL);
+        }
+    };
+
+    private final ReconnectEngine mReconnectEngine;
+
+    // Notifications received since the connection, written by the binder thread only.
+    private volatile long mNotificationCount;
+    private volatile long mConnectedTime;
+
+    // Implements callback methods for GATT events that the app cares about.  For example,
+    // connection change and services discovered.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                final GattLink link = mGatt;
+                // Closed meanwhile.
+                if (link == null) return;
+                mState = STATE_CONNECTED;
+                mResumedNotifications = false;
+                mConnectedTime = SystemClock.elapsedRealtime();
+                mNotificationCount = 0;
+                mSpeedCadence.reset();
+                mHandler.removeCallbacks(mStaleCheck);
+                mHandler.postDelayed(mStaleCheck, STALE_CHECK_INTERVAL);
+                mGattQueue.setGatt(link);
+                mReconnectEngine.onConnected();
+                mConnectionPolicy.onConnected();
+                mHost.onSessionStateChanged(GattSession.this, status);
+                Log.i(TAG, mAddress + ": connected to GATT server.");
+                final List<BluetoothGattService> services = link.getServices();
+                mResumedEarly = !services.isEmpty();
+                if (mResumedEarly) {
+                    // A reused BluetoothGatt still holding the services of its last discovery.
+                    Log.i(TAG, mAddress + ": known layout, resuming before discovery");
+                    resume();
+                    mConnectionPolicy.onServicesDiscovered(services);
+                    mHost.onSessionServicesDiscovered(GattSession.this);
+                }
+                // Attempts to discover services after successful connection, queued behind the
+                // operations resuming the session.
+                Log.i(TAG, mAddress + ": attempting to start service discovery:" +
+                        mGattQueue.discoverServices(null));
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                final boolean linkLost = mState == STATE_CONNECTED;
+                mState = STATE_DISCONNECTED;
+                mResumedNotifications = false;
+                Log.i(TAG, mAddress + ": disconnected from GATT server, status " + status + ", "
+                        + getStats());
+                mHandler.removeCallbacks(mStaleCheck);
+                mConnectionPolicy.onDisconnected();
+                mBrakeChannel.clear();
+                mGattQueue.setGatt(null);
+                if (mWanted) {
+                    if (linkLost) {
+                        mConnectionMetrics.onLinkLost(SystemClock.elapsedRealtime());
+                        mAwaitingFirstSample = true;
+                    }
+                    mReconnectEngine.onDisconnected(status);
+                }
+                mHost.onSessionStateChanged(GattSession.this, status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mGattQueue.onServicesDiscovered(status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, mAddress + ": onServicesDiscovered received: " + status);
+                return;
+            }
+            final GattLink link = mGatt;
+            if (link == null) return;
+            final List<BluetoothGattService> services = link.getServices();
+            final byte[] layout = GattLayout.encode(services);
+            final boolean changed = !Arrays.equals(layout, mLayout);
+            mLayout = layout;
+            final boolean resumedEarly = mResumedEarly;
+            mResumedEarly = false;
+            if (resumedEarly && !changed) {
+                Log.i(TAG, mAddress + ": discovery confirmed the known layout");
+                return;
+            }
+            if (resumedEarly) {
+                // The characteristics resumed early are gone, resume on the new ones.
+                Log.w(TAG, mAddress + ": the layout changed since the last discovery");
+            }
+            resume();
+            mConnectionPolicy.onServicesDiscovered(services);
+            mHost.onSessionServicesDiscovered(GattSession.this);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                broadcastUpdate(BluetoothLeService.ACTION_DATA_AVAILABLE,
+                        characteristic.getUuid(), characteristic.getValue());
+            }
+            mGattQueue.onCharacteristicRead(characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            mGattQueue.onCharacteristicWrite(characteristic, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mGattQueue.onDescriptorWrite(descriptor, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mConnectionPolicy.onMtuChanged(mtu);
+            }
+            mGattQueue.onMtuChanged(mtu, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            mNotificationCount++;
+            broadcastUpdate(BluetoothLeService.ACTION_DATA_AVAILABLE, characteristic.getUuid(),
+                    characteristic.getValue());
+        }
+    };
+
+    GattSession(int id, String address, Context context, Host host,
+                CharacteristicRegistry characteristics, MetricsBus mergedBus,
+                ConnectGate connectGate) {
+        mId = id;
+        mAddress = address;
+        mContext = context;
+        mHost = host;
+        mCharacteristics = characteristics;
+        mMergedBus = mergedBus;
+        mReconnectEngine = new ReconnectEngine(connectGate, new ReconnectEngine.Target() {
+            @Override
+            public boolean canReuse() {
+                return mGatt != null;
+            }
+
+            @Override
+            public boolean reconnect(boolean fresh) {
+                return reconnectGatt(fresh);
+            }
+
+            @Override
+            public void abort() {
+                abortConnection();
+            }
+
+            @Override
+            public String toString() {
+                return mAddress;
+            }
+        });
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isConnected() {
+        return mState == STATE_CONNECTED && mGatt != null;
+    }
+
+    /**
+     * Connects, reusing the {@code BluetoothGatt} of a previous connection if any.
+     */
+    boolean connect(BluetoothDevice device) {
+        return connect(BluetoothGattLink.opener(mContext, device));
+    }
+
+    /**
+     * Connects, reusing the link of a previous connection if any, or opening a new one, once
+     * the gate of the pool lets the attempt through.
+     */
+    boolean connect(GattLink.Opener opener) {
+        mOpener = opener;
+        mWanted = true;
+        if (mState == STATE_CONNECTED && mGatt != null) {
+            // Already connected, e.g. directly at launch.
+            return true;
+        }
+        mState = STATE_CONNECTING;
+        mReconnectEngine.connect();
+        return true;
+    }
+
+    /**
+     * Connects again if the session is wanted but not connected nor reconnecting, i.e. its
+     * engine gave up, e.g. when the background discovery sees the device again.  Main thread.
+     */
+    void reconnectIfIdle() {
+        if (!mWanted || mOpener == null || mState != STATE_DISCONNECTED
+                || mReconnectEngine.isActive()) {
+            return;
+        }
+        Log.i(TAG, mAddress + ": device present, connecting again");
+        connect(mOpener);
+    }
+
+    void disconnect() {
+        mWanted = false;
+        mReconnectEngine.cancel();
+        forgetResumeState();
+        if (mGatt == null) {
+            // Still waiting for the gate.
+            mState = STATE_DISCONNECTED;
+            return;
+        }
+        mGatt.disconnect();
+    }
+
+    void close() {
+        mWanted = false;
+        mReconnectEngine.cancel();
+        forgetResumeState();
+        mHandler.removeCallbacks(mStaleCheck);
+        if (mGatt == null) return;
+        mBrakeChannel.clear();
+        mConnectionPolicy.onDisconnected();
+        mGattQueue.setGatt(null);
+        mGatt.close();
+        mGatt = null;
+        mState = STATE_DISCONNECTED;
+    }
+
+    // Connection attempt of the reconnect engine.
+    private boolean reconnectGatt(boolean fresh) {
+        if (!mWanted || mOpener == null) return false;
+        if (mGatt != null && !fresh) {
+            if (!mGatt.connect()) return false;
+            mState = STATE_CONNECTING;
+            return true;
+        }
+        if (mGatt != null) {
+            // After a GATT_ERROR the stack keeps a stale client; only a new one connects.
+            mGattQueue.setGatt(null);
+            mGatt.close();
+            mGatt = null;
+        }
+        // We want to directly connect to the device, so the opener sets the autoConnect
+        // parameter to false.
+        mGatt = mOpener.open(mGattCallback);
+        if (mGatt == null) return false;
+        mGattQueue.setGatt(mGatt);
+        mState = STATE_CONNECTING;
+        return true;
+    }
+
+    // Closes the link of an attempt the engine aborted, a late connection is then ignored.
+    private void abortConnection() {
+        if (mState == STATE_CONNECTED) return;
+        if (mGatt != null) {
+            mGattQueue.setGatt(null);
+            mGatt.close();
+            mGatt = null;
+        }
+        mState = STATE_DISCONNECTED;
+        mHost.onSessionStateChanged(this, BluetoothGatt.GATT_FAILURE);
+    }
+
+    // Enables again the notifications enabled before the reconnection and resends the last
+    // brake target, looking the characteristics up in the current services.
+    private void resume() {
+        final UUID[] notifying;
+        final UUID brakeUuid;
+        final int brakeMode;
+        final int brakeValue;
+        synchronized (this) {
+            notifying = mNotifying.toArray(new UUID[mNotifying.size()]);
+            brakeUuid = mBrakeUuid;
+            brakeMode = mBrakeMode;
+            brakeValue = mBrakeValue;
+        }
+        for (UUID uuid : notifying) {
+            final BluetoothGattCharacteristic characteristic = findCharacteristic(uuid);
+            if (characteristic != null) setCharacteristicNotification(characteristic, true);
+        }
+        if (brakeUuid != null) {
+            final BluetoothGattCharacteristic brake = findCharacteristic(brakeUuid);
+            if (brake != null) mBrakeChannel.submit(brake, brakeMode, brakeValue);
+        }
+        mResumedNotifications = notifying.length > 0;
+        if (notifying.length > 0 || brakeUuid != null) {
+            Log.i(TAG, mAddress + ": resumed " + notifying.length + " notifications"
+                    + (brakeUuid != null ? " and the brake target" : ""));
+        }
+    }
+
+    /**
+     * @return True when the session enabled again the notifications of the previous
+     * connection, which callers reacting to the discovered services must not enable again.
+     */
+    public boolean hasResumedNotifications() {
+        return mResumedNotifications;
+    }
+
+    private synchronized void forgetResumeState() {
+        mNotifying.clear();
+        mBrakeUuid = null;
+    }
+
+    /**
+     * @return True while the link is lost and being restored.
+     */
+    public boolean isReconnecting() {
+        return mReconnectEngine.isActive();
+    }
+
+    public ReconnectEngine getReconnectEngine() {
+        return mReconnectEngine;
+    }
+
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        if (mGatt == null) return;
+        mGattQueue.read(characteristic);
+    }
+
+    /**
+     * Sends a brake target to the Elite trainer, see {@link BrakeCommandChannel#encode}.
+     *
+     * @return The sequence number of the target in the brake channel, 0 if not connected.
+     */
+    public long writeBrakeTarget(BluetoothGattCharacteristic characteristic, int mode,
+                                 int value) {
+        return writeBrakeTarget(characteristic, mode, value, false);
+    }
+
+    /**
+     * @param confirmed Whether to send the target as a confirmed write even when the brake
+     *                  channel uses write without response, see
+     *                  {@link BrakeCommandChannel#submit(BluetoothGattCharacteristic, int, int,
+     *                  boolean)}.
+     * @return The sequence number of the target in the brake channel, 0 if not connected.
+     */
+    public long writeBrakeTarget(BluetoothGattCharacteristic characteristic, int mode,
+                                 int value, boolean confirmed) {
+        if (mGatt == null) return 0;
+        synchronized (this) {
+            mBrakeUuid = characteristic.getUuid();
+            mBrakeMode = mode;
+            mBrakeValue = value;
+        }
+        // Only the newest target is kept while the previous one is being written.
+        final long sequence = mBrakeChannel.submit(characteristic, mode, value, confirmed);
+        mConnectionPolicy.onBrakeTarget(mode, SystemClock.elapsedRealtime());
+        if (mode == BrakeCommandChannel.MODE_POWER) {
+            Log.w(TAG_SET_POWER, "Set Power: " + value);
+        } else {
+            Log.w(TAG_SET_POWER, "Set Level: " + Math.min(value, BrakeCommandChannel.MAX_LEVEL));
+        }
+        return sequence;
+    }
+
+    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                              boolean enabled) {
+        if (mGatt == null) return;
+        mGatt.setCharacteristicNotification(characteristic, enabled);
+        synchronized (this) {
+            mNotifying.remove(characteristic.getUuid());
+            if (enabled) mNotifying.add(characteristic.getUuid());
+        }
+
+        // The registry tells which characteristics need their Client Characteristic
+        // Configuration descriptor written, and with which value.
+        final int policy = CharacteristicRegistry.cccdPolicyOf(
+                mCharacteristics.lookup(characteristic.getUuid()));
+        if (policy == CharacteristicRegistry.CCCD_NONE) {
+            return;
+        }
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                CLIENT_CHARACTERISTIC_CONFIG);
+        if (descriptor == null) {
+            Log.w(TAG, "No Client Characteristic Configuration on " + characteristic.getUuid());
+            return;
+        }
+        final byte[] value;
+        if (!enabled) {
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if (policy == CharacteristicRegistry.CCCD_INDICATE) {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        } else {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        }
+        // Queued, a descriptor write issued while another operation is in flight is dropped.
+        mGattQueue.writeDescriptor(descriptor, value);
+    }
+
+    public List<BluetoothGattService> getServices() {
+        if (mGatt == null) return null;
+        return mGatt.getServices();
+    }
+
+    /**
+     * @return The first characteristic with the given UUID, or null if there is none.
+     */
+    public BluetoothGattCharacteristic findCharacteristic(UUID uuid) {
+        final List<BluetoothGattService> services = getServices();
+        if (services == null) return null;
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (uuid.equals(characteristic.getUuid())) return characteristic;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Enables the notifications or indications of all the characteristics the registry has a
+     * descriptor policy for, e.g. power, speed/cadence, heart rate and the OOR flag.  Does
+     * nothing after a reconnection the session resumed, see {@link #hasResumedNotifications()}.
+     */
+    public void enableKnownNotifications() {
+        final List<BluetoothGattService> services = getServices();
+        if (services == null || mResumedNotifications) return;
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                final int policy = CharacteristicRegistry.cccdPolicyOf(
+                        mCharacteristics.lookup(characteristic.getUuid()));
+                if (policy != CharacteristicRegistry.CCCD_NONE) {
+                    setCharacteristicNotification(characteristic, true);
+                }
+            }
+        }
+    }
+
+    public GattOperationQueue getGattOperationQueue() {
+        return mGattQueue;
+    }
+
+    public ConnectionMetrics getConnectionMetrics() {
+        return mConnectionMetrics;
+    }
+
+    public BrakeCommandChannel getBrakeCommandChannel() {
+        return mBrakeChannel;
+    }
+
+    /**
+     * Registers a listener for the metrics of this session only.  The callbacks run on the
+     * Bluetooth binder thread.
+     */
+    public void registerMetricsListener(MetricsListener listener) {
+        mMetricsBus.register(listener);
+    }
+
+    public void unregisterMetricsListener(MetricsListener listener) {
+        mMetricsBus.unregister(listener);
+    }
+
+    void setLegacyDataBroadcasts(boolean enabled) {
+        mLegacyDataBroadcasts = enabled;
+    }
+
+    public long getNotificationCount() {
+        return mNotificationCount;
+    }
+
+    /**
+     * @return The notifications received per second since the connection.
+     */
+    public float getNotificationRate() {
+        final long connectedTime = mConnectedTime;
+        if (mState != STATE_CONNECTED || connectedTime == 0) return 0;
+        final long elapsed = SystemClock.elapsedRealtime() - connectedTime;
+        return elapsed <= 0 ? 0 : mNotificationCount * 1000f / elapsed;
+    }
+
+    public String getStats() {
+        return "notifications " + mNotificationCount + " (" + getNotificationRate() + "/s)"
+                + "; GATT operations: " + mGattQueue + "; brake commands: " + mBrakeChannel
+                + "; link: " + mConnectionMetrics + "; reconnections: " + mReconnectEngine;
+    }
+
+    private void broadcastUpdate(final String action, final UUID uuid, final byte[] data) {
+        final int decoder = CharacteristicRegistry.decoderOf(mCharacteristics.lookup(uuid));
+        if (mAwaitingFirstSample && (decoder == CharacteristicRegistry.DECODER_HEART_RATE
+                || decoder == CharacteristicRegistry.DECODER_CSC
+                || decoder == CharacteristicRegistry.DECODER_CYCLING_POWER)) {
+            mAwaitingFirstSample = false;
+            mConnectionMetrics.onFirstSample(SystemClock.elapsedRealtime());
+            Log.i(TAG, mAddress + ": first sample " + mConnectionMetrics.getLastReconnectTime()
+                    + " ms after the link was lost");
+        }
+
+        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
+        // carried out as per profile specifications:
+        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+        if (decoder == CharacteristicRegistry.DECODER_HEART_RATE) {
+            if (!SensorDecoder.decodeHeartRate(data, mHeartRateSample)) return;
+            final HeartRateSample sample = mHeartRateSample;
+            mMetricsBus.publishHeartRate(mId, sample.mHeartRate);
+            mMergedBus.publishHeartRate(mId, sample.mHeartRate);
+            if (sample.mRrCount > 0) {
+                mMetricsBus.publishRrIntervals(mId, sample.mRrIntervals, sample.mRrCount);
+                mMergedBus.publishRrIntervals(mId, sample.mRrIntervals, sample.mRrCount);
+            }
+            if (mLegacyDataBroadcasts) {
+                final Intent intent = new Intent(action);
+                intent.putExtra(BluetoothLeService.EXTRA_DATA, String.valueOf(sample.mHeartRate));
+                mHost.onSessionBroadcast(this, intent);
+            }
+
+        } else if (decoder == CharacteristicRegistry.DECODER_CSC) {
+            if (!SensorDecoder.decodeCsc(data, mCscSample)) return;
+            final CscSample sample = mCscSample;
+            final long now = SystemClock.elapsedRealtime();
+            mSpeedCadence.onCscSample(sample, BluetoothLeService.WheelCircumference, now);
+            final double Speed = mSpeedCadence.getCscSpeed();
+            final int Cadence = mSpeedCadence.getCscCadence();
+            mConnectionPolicy.onSample(Speed > 0 || Cadence > 0, now);
+            if (sample.mWheelPresent) {
+                mMetricsBus.publishSpeed(mId, Speed);
+                mMergedBus.publishSpeed(mId, Speed);
+            }
+            if (sample.mCrankPresent) {
+                mMetricsBus.publishCadence(mId, Cadence);
+                mMergedBus.publishCadence(mId, Cadence);
+            }
+            if (mLegacyDataBroadcasts) {
+                broadcastLegacyData(action, false, 0, sample.mWheelPresent, Speed,
+                        sample.mCrankPresent, Cadence);
+            }
+
+        } else if (decoder == CharacteristicRegistry.DECODER_CYCLING_POWER) {
+            if (!SensorDecoder.decodeCyclingPower(data, mPowerSample)) return;
+            final PowerSample sample = mPowerSample;
+            final int InstaPow = sample.mInstantaneousPower;
+            final long now = SystemClock.elapsedRealtime();
+            mSpeedCadence.onPowerSample(sample, BluetoothLeService.WheelCircumference, now);
+            final double SpeedPw = mSpeedCadence.getPowerSpeed();
+            final int CadencePw = mSpeedCadence.getPowerCadence();
+            mConnectionPolicy.onSample(InstaPow > 0 || CadencePw > 0, now);
+            mMetricsBus.publishPower(mId, InstaPow);
+            mMergedBus.publishPower(mId, InstaPow);
+            if (sample.mWheelPresent) {
+                mMetricsBus.publishSpeed(mId, SpeedPw);
+                mMergedBus.publishSpeed(mId, SpeedPw);
+            }
+            if (sample.mCrankPresent) {
+                mMetricsBus.publishCadence(mId, CadencePw);
+                mMergedBus.publishCadence(mId, CadencePw);
+            }
+            if (mLegacyDataBroadcasts) {
+                broadcastLegacyData(action, true, InstaPow, sample.mWheelPresent, SpeedPw,
+                        sample.mCrankPresent, CadencePw);
+            }
+
+        } else if (decoder == CharacteristicRegistry.DECODER_ELITE_OOR_FLAG) {
+            if (data == null || data.length < 1) return;
+            int Flags = SensorDecoder.sint8(data, 0);
+            mMetricsBus.publishOorFlag(mId, Flags);
+            mMergedBus.publishOorFlag(mId, Flags);
+            if (mLegacyDataBroadcasts) {
+                final Intent intent = new Intent(action);
+                intent.putExtra(BluetoothLeService.EXTRA_DATA_ELITE_OOR_FLAG, Flags);
+                mHost.onSessionBroadcast(this, intent);
+            }
+
+        } else if (decoder == CharacteristicRegistry.DECODER_CYCLING_POWER_FEATURE) {
+            if (data == null || data.length < 2) return;
+            final Intent intent = new Intent(action);
+            int Flags = SensorDecoder.sint16(data, 0);
+            intent.putExtra(BluetoothLeService.EXTRA_DATA, "Pow feat.: " + String.valueOf(Flags));
+            mHost.onSessionBroadcast(this, intent);
+
+        } else {
+            // For all other profiles, writes the data formatted in HEX.
+            final Intent intent = new Intent(action);
+            if (data != null && data.length > 0) {
+                final StringBuilder stringBuilder = new StringBuilder(data.length);
+                for (byte byteChar : data)
+                    stringBuilder.append(String.format("%02X ", byteChar));
+                intent.putExtra(BluetoothLeService.EXTRA_DATA,
+                        new String(data) + "\n" + stringBuilder.toString());
+            }
+            mHost.onSessionBroadcast(this, intent);
+        }
+    }
+
+    // Compatibility path: ships a decoded sample as ACTION_DATA_AVAILABLE extras.
+    private void broadcastLegacyData(final String action,
+                                     boolean powerPresent, int power,
+                                     boolean speedPresent, double speed,
+                                     boolean cadencePresent, int cadence) {
+        final Intent intent = new Intent(action);
+        final StringBuilder text = new StringBuilder();
+        if (powerPresent) {
+            text.append("Pow: ").append(power).append("Watt");
+            intent.putExtra(BluetoothLeService.EXTRA_DATA_POW, power);
+        }
+        if (speedPresent) {
+            if (text.length() > 0) text.append("; ");
+            text.append("vel: ").append((double) Math.round(speed * 10) / 10);
+            intent.putExtra(BluetoothLeService.EXTRA_DATA_SPD, speed);
+        }
+        if (cadencePresent) {
+            if (text.length() > 0) text.append("; ");
+            text.append("Cad: ").append(cadence);
+            intent.putExtra(BluetoothLeService.EXTRA_DATA_CAD, cadence);
+        }
+        intent.putExtra(BluetoothLeService.EXTRA_DATA, text.toString());
+        mHost.onSessionBroadcast(this, intent);
+    }
+
+    /**
+     * Implemented by the pool owning the session, called on the Bluetooth binder thread.
+     */
+    interface Host {
+        void onSessionStateChanged(GattSession session, int status);
+
+        void onSessionServicesDiscovered(GattSession session);
+
+        void onSessionBroadcast(GattSession session, Intent intent);
+    }
+}
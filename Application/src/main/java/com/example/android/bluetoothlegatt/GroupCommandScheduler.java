@@ -0,0 +1,284 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Sends one brake target to a group of trainers, e.g. the workout step change of a studio
+ * class.
+ * <p/>
+ * Targets are applied on ticks spaced by {@link #TICK_INTERVAL}: a target submitted between
+ * two ticks replaces the previous one, and the tick writes it to every member.  The writes of
+ * a tick are issued in turn over the connections, starting from a member that rotates at each
+ * tick, so that the stack serving them in order does not always leave the same rider last.
+ * <p/>
+ * For each tick, the time from the tick to the acknowledgement of each member is recorded.
+ * The skew of the tick is the spread between the first and the last acknowledgement.  A tick
+ * whose acknowledgements did not all arrive within {@link #ACK_TIMEOUT} is counted as
+ * incomplete.  The writes of a tick are confirmed writes, even on the channels that send
+ * their targets without response, so that an acknowledgement is the write response of the
+ * trainer and not the local hand-off of the write to the controller.
+ * <p/>
+ * Must be used on the UI thread.  The write completions can arrive on any thread.
+ */
+public class GroupCommandScheduler {
+    private final static String TAG = GroupCommandScheduler.class.getSimpleName();
+    // Matches the shortest time between two writes of a brake channel.
+    private static final long TICK_INTERVAL = 250;
+    private static final long ACK_TIMEOUT = 2000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Members and tick state, guarded by "this".
+    private final ArrayList<Member> mMembers = new ArrayList<Member>();
+    private int mRotation;
+    private boolean mPending;
+    private int mPendingMode;
+    private int mPendingValue;
+    private boolean mTickScheduled;
+    private long mLastTickTime;
+    private long mTickTime;
+    private int mAwaitedAcks;
+    private long mFirstAck;
+    private long mLastAck;
+
+    // Statistics, guarded by "this".
+    private long mTickCount;
+    private long mCompleteTickCount;
+    private long mIncompleteTickCount;
+    private long mLastSkew;
+    private long mTotalSkew;
+    private long mMaxSkew;
+    private long mTotalLastAck;
+    private long mMaxLastAck;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+    private final Runnable mAckTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GroupCommandScheduler.this) {
+                if (mAwaitedAcks == 0) return;
+                Log.w(TAG, mAwaitedAcks + " of " + mMembers.size() + " trainers did not ack");
+                mAwaitedAcks = 0;
+                mIncompleteTickCount++;
+            }
+        }
+    };
+
+    /**
+     * Adds a trainer to the group, or updates its brake characteristic.  The scheduler becomes
+     * the listener of the brake channel of the session.
+     */
+    public synchronized void addMember(GattSession session,
+                                       BluetoothGattCharacteristic characteristic) {
+        Member member = findMember(session);
+        if (member == null) {
+            member = new Member(session);
+            mMembers.add(member);
+        }
+        member.mCharacteristic = characteristic;
+        session.getBrakeCommandChannel().setListener(member);
+    }
+
+    public synchronized void removeMember(GattSession session) {
+        final Member member = findMember(session);
+        if (member == null) return;
+        mMembers.remove(member);
+        session.getBrakeCommandChannel().setListener(null);
+        if (member.mAwaiting) {
+            member.mAwaiting = false;
+            onAcked(-1);
+        }
+    }
+
+    public synchronized int getMemberCount() {
+        return mMembers.size();
+    }
+
+    /**
+     * Sets the target of the group, sent to every member on the next tick.
+     *
+     * @param mode  {@link BrakeCommandChannel#MODE_POWER} or
+     *              {@link BrakeCommandChannel#MODE_LEVEL}.
+     */
+    public synchronized void submit(int mode, int value) {
+        mPending = true;
+        mPendingMode = mode;
+        mPendingValue = value;
+        if (mTickScheduled) return;
+        mTickScheduled = true;
+        final long wait = mLastTickTime + TICK_INTERVAL - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(mTick, Math.max(wait, 0));
+    }
+
+    /**
+     * Drops the pending target and forgets the members, e.g. when the class ends.
+     */
+    public synchronized void clear() {
+        mHandler.removeCallbacks(mTick);
+        mHandler.removeCallbacks(mAckTimeout);
+        for (Member member : mMembers) {
+            member.mSession.getBrakeCommandChannel().setListener(null);
+        }
+        mMembers.clear();
+        mTickScheduled = false;
+        mPending = false;
+        mAwaitedAcks = 0;
+    }
+
+    public synchronized long getTickCount() {
+        return mTickCount;
+    }
+
+    public synchronized long getIncompleteTickCount() {
+        return mIncompleteTickCount;
+    }
+
+    /**
+     * @return The spread between the first and the last acknowledgement of the last complete
+     * tick, in milliseconds.
+     */
+    public synchronized long getLastSkew() {
+        return mLastSkew;
+    }
+
+    public synchronized long getAverageSkew() {
+        return mCompleteTickCount == 0 ? 0 : mTotalSkew / mCompleteTickCount;
+    }
+
+    public synchronized long getMaxSkew() {
+        return mMaxSkew;
+    }
+
+    /**
+     * @return The average time from a tick to the acknowledgement of its last member, in
+     * milliseconds.
+     */
+    public synchronized long getAverageLastAck() {
+        return mCompleteTickCount == 0 ? 0 : mTotalLastAck / mCompleteTickCount;
+    }
+
+    public synchronized void resetStats() {
+        mTickCount = 0;
+        mCompleteTickCount = 0;
+        mIncompleteTickCount = 0;
+        mLastSkew = 0;
+        mTotalSkew = 0;
+        mMaxSkew = 0;
+        mTotalLastAck = 0;
+        mMaxLastAck = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mMembers.size() + " trainers, ticks " + mTickCount + " (" + mIncompleteTickCount
+                + " incomplete), skew last " + mLastSkew + " ms avg " + getAverageSkew()
+                + " ms max " + mMaxSkew + " ms, last ack avg " + getAverageLastAck()
+                + " ms max " + mMaxLastAck + " ms";
+    }
+
+    private synchronized void tick() {
+        mTickScheduled = false;
+        if (!mPending) return;
+        mPending = false;
+        final int count = mMembers.size();
+        mLastTickTime = SystemClock.elapsedRealtime();
+        if (count == 0) return;
+        // A tick superseded before all its acks arrived is incomplete.
+        if (mAwaitedAcks > 0) mIncompleteTickCount++;
+        mTickCount++;
+        mTickTime = mLastTickTime;
+        mAwaitedAcks = count;
+        mFirstAck = 0;
+        mLastAck = 0;
+        for (int i = 0; i < count; i++) {
+            final Member member = mMembers.get(i);
+            member.mSequence = 0;
+            member.mAwaiting = true;
+        }
+        mHandler.removeCallbacks(mAckTimeout);
+        mHandler.postDelayed(mAckTimeout, ACK_TIMEOUT);
+        // The lock is held while issuing, so that no completion is matched before the
+        // sequence of its member is known.  The writes only enqueue.
+        final int first = mRotation;
+        mRotation = (mRotation + 1) % count;
+        for (int i = 0; i < count; i++) {
+            final Member member = mMembers.get((first + i) % count);
+            final long sequence = member.mSession.writeBrakeTarget(member.mCharacteristic,
+                    mPendingMode, mPendingValue, true);
+            if (sequence == 0) {
+                // Not connected, nothing to wait for.
+                member.mAwaiting = false;
+                onAcked(-1);
+            } else {
+                member.mSequence = sequence;
+            }
+        }
+    }
+
+    // Called with the lock held, time is -1 for a member that will not ack.
+    private void onAcked(long time) {
+        if (mAwaitedAcks == 0) return;
+        if (time >= 0) {
+            if (mFirstAck == 0) mFirstAck = time;
+            mLastAck = time;
+        }
+        if (--mAwaitedAcks > 0) return;
+        mHandler.removeCallbacks(mAckTimeout);
+        if (mFirstAck == 0) return;
+        final long skew = mLastAck - mFirstAck;
+        final long lastAck = mLastAck - mTickTime;
+        mCompleteTickCount++;
+        mLastSkew = skew;
+        mTotalSkew += skew;
+        mTotalLastAck += lastAck;
+        if (skew > mMaxSkew) mMaxSkew = skew;
+        if (lastAck > mMaxLastAck) mMaxLastAck = lastAck;
+        Log.d(TAG, "Tick acked by " + mMembers.size() + " trainers, skew " + skew
+                + " ms, last ack " + lastAck + " ms");
+    }
+
+    // Called with the lock held.
+    private Member findMember(GattSession session) {
+        for (int i = 0; i < mMembers.size(); i++) {
+            if (mMembers.get(i).mSession == session) return mMembers.get(i);
+        }
+        return null;
+    }
+
+    private class Member implements BrakeCommandChannel.Listener {
+        final GattSession mSession;
+        BluetoothGattCharacteristic mCharacteristic;
+        // Sequence of the target of the current tick in the brake channel, 0 until issued.
+        long mSequence;
+        boolean mAwaiting;
+
+        Member(GattSession session) {
+            mSession = session;
+        }
+
+        @Override
+        public void onBrakeWriteComplete(long sequence, boolean withoutResponse, long latency,
+                                         boolean success) {
+            synchronized (GroupCommandScheduler.this) {
+                // Earlier targets still in flight do not count, later ones do.  A write
+                // without response completes locally, it is not an acknowledgement.
+                if (!mAwaiting || !success || withoutResponse || mSequence == 0
+                        || sequence < mSequence) {
+                    return;
+                }
+                mAwaiting = false;
+                onAcked(SystemClock.elapsedRealtime());
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Reusable holder for a decoded Heart Rate Measurement notification.
+ * Filled by {@link SensorDecoder#decodeHeartRate(byte[], HeartRateSample)}.
+ * <p/>
+ * The RR intervals of the notification are stored in {@link #mRrIntervals}, of which only the
+ * first {@link #mRrCount} entries are valid.  The buffer is reused across notifications.
+ */
+public class HeartRateSample {
+    // A 20 byte notification holds at most 9 RR intervals, a larger MTU can hold more.
+    private static final int INITIAL_RR_CAPACITY = 16;
+
+    public int mFlags;
+    /** Heart rate in beats per minute. */
+    public int mHeartRate;
+
+    /** True if the sensor supports contact detection. */
+    public boolean mContactSupported;
+    /** True if the sensor detects skin contact, meaningful only if contact is supported. */
+    public boolean mContactDetected;
+
+    public boolean mEnergyExpendedPresent;
+    /** Energy expended since the last reset, uint16 in kJ. */
+    public int mEnergyExpended;
+
+    /** RR intervals, uint16 in 1/1024 s. */
+    public int[] mRrIntervals = new int[INITIAL_RR_CAPACITY];
+    public int mRrCount;
+
+    /**
+     * Returns the RR interval at the given index in milliseconds.
+     */
+    public int getRrIntervalMillis(int index) {
+        return (int) ((mRrIntervals[index] * 1000L + 512) / 1024);
+    }
+
+    /**
+     * Copies the valid RR intervals, in 1/1024 s, into {@code dest} starting at
+     * {@code destOffset}.
+     *
+     * @return The number of intervals copied, 0 if {@code destOffset} is past the end of
+     * {@code dest}.
+     */
+    public int copyRrIntervals(int[] dest, int destOffset) {
+        final int count = Math.max(0, Math.min(mRrCount, dest.length - destOffset));
+        // System.arraycopy rejects an offset past the end even for an empty copy.
+        if (count > 0) System.arraycopy(mRrIntervals, 0, dest, destOffset, count);
+        return count;
+    }
+
+    void ensureRrCapacity(int capacity) {
+        if (mRrIntervals.length < capacity) {
+            mRrIntervals = new int[capacity];
+        }
+    }
+}
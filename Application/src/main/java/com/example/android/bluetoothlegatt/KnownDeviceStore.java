@@ -0,0 +1,142 @@
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Devices used before, persisted in {@link SharedPreferences}.
+ * <p/>
+ * For each device the store keeps its name, the time it was last used and its settings (wheel
+ * circumference, power slider full-scale).  At launch the most recently used devices can be
+ * connected to directly, without waiting for a scan to find them.  A device not used for
+ * {@link #MAX_AGE} is forgotten by {@link #prune}.
+ */
+public class KnownDeviceStore {
+    private static final String PREFS_NAME = "known_devices";
+    // Addresses separated by ',', most recently used first.
+    private static final String KEY_ADDRESSES = "addresses";
+    private static final String KEY_NAME = ".name";
+    private static final String KEY_LAST_USED = ".last_used";
+    private static final String KEY_WHEEL_CIRCUMFERENCE = ".wheel_circumference";
+    private static final String KEY_MAX_POWER_SLIDER = ".max_power_slider";
+    private static final int MAX_DEVICES = 16;
+    private static final long MAX_AGE = 90L * 24 * 60 * 60 * 1000;
+
+    private final SharedPreferences mPrefs;
+
+    public KnownDeviceStore(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The known addresses, most recently used first.
+     */
+    public List<String> getAddresses() {
+        final List<String> addresses = new ArrayList<String>();
+        final String value = mPrefs.getString(KEY_ADDRESSES, "");
+        int start = 0;
+        while (start < value.length()) {
+            int end = value.indexOf(',', start);
+            if (end < 0) end = value.length();
+            if (end > start) addresses.add(value.substring(start, end));
+            start = end + 1;
+        }
+        return addresses;
+    }
+
+    /**
+     * @return The most recently used address, or null if no device is known.
+     */
+    public String getLastUsedAddress() {
+        final List<String> addresses = getAddresses();
+        return addresses.isEmpty() ? null : addresses.get(0);
+    }
+
+    public boolean isKnown(String address) {
+        return address != null && getAddresses().contains(address);
+    }
+
+    /**
+     * Records that the device is being used, making it the most recent one.
+     */
+    public void remember(String address, String name, long nowMillis) {
+        if (address == null) return;
+        final List<String> addresses = getAddresses();
+        addresses.remove(address);
+        addresses.add(0, address);
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        // Forget the least recently used devices.
+        while (addresses.size() > MAX_DEVICES) {
+            forget(editor, addresses.remove(addresses.size() - 1));
+        }
+        editor.putString(KEY_ADDRESSES, join(addresses));
+        if (name != null && name.length() > 0) {
+            editor.putString(address + KEY_NAME, name);
+        }
+        editor.putLong(address + KEY_LAST_USED, nowMillis);
+        editor.apply();
+    }
+
+    /**
+     * Forgets the devices not used for {@link #MAX_AGE}.
+     */
+    public void prune(long nowMillis) {
+        final List<String> addresses = getAddresses();
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        boolean pruned = false;
+        for (int i = addresses.size() - 1; i >= 0; i--) {
+            if (nowMillis - getLastUsed(addresses.get(i)) <= MAX_AGE) continue;
+            forget(editor, addresses.remove(i));
+            pruned = true;
+        }
+        if (!pruned) return;
+        editor.putString(KEY_ADDRESSES, join(addresses));
+        editor.apply();
+    }
+
+    public String getName(String address) {
+        return mPrefs.getString(address + KEY_NAME, null);
+    }
+
+    public long getLastUsed(String address) {
+        return mPrefs.getLong(address + KEY_LAST_USED, 0);
+    }
+
+    public int getWheelCircumference(String address, int defaultValue) {
+        return mPrefs.getInt(address + KEY_WHEEL_CIRCUMFERENCE, defaultValue);
+    }
+
+    public void setWheelCircumference(String address, int millimeters) {
+        if (address == null) return;
+        mPrefs.edit().putInt(address + KEY_WHEEL_CIRCUMFERENCE, millimeters).apply();
+    }
+
+    public int getMaxPowerSlider(String address, int defaultValue) {
+        return mPrefs.getInt(address + KEY_MAX_POWER_SLIDER, defaultValue);
+    }
+
+    public void setMaxPowerSlider(String address, int watts) {
+        if (address == null) return;
+        mPrefs.edit().putInt(address + KEY_MAX_POWER_SLIDER, watts).apply();
+    }
+
+    private static String join(List<String> addresses) {
+        final StringBuilder value = new StringBuilder();
+        for (int i = 0; i < addresses.size(); i++) {
+            if (i > 0) value.append(',');
+            value.append(addresses.get(i));
+        }
+        return value.toString();
+    }
+
+    private static void forget(SharedPreferences.Editor editor, String address) {
+        editor.remove(address + KEY_NAME);
+        editor.remove(address + KEY_LAST_USED);
+        editor.remove(address + KEY_WHEEL_CIRCUMFERENCE);
+        editor.remove(address + KEY_MAX_POWER_SLIDER);
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+
+/**
+ * Measures the time from the app launch to the first power sample shown.
+ */
+public final class LaunchMetrics {
+    private static long sLaunchTime;
+    private static long sFirstPowerDelay = -1;
+    private static boolean sDirectConnect;
+
+    private LaunchMetrics() {
+    }
+
+    /**
+     * Starts a new measurement, called when the launcher activity is created.
+     *
+     * @param directConnect true if a known device is connected without waiting for the scan.
+     */
+    public static synchronized void onLaunch(boolean directConnect) {
+        sLaunchTime = SystemClock.elapsedRealtime();
+        sFirstPowerDelay = -1;
+        sDirectConnect = directConnect;
+    }
+
+    /**
+     * Records a power sample.
+     *
+     * @return true if it was the first one since the launch.
+     */
+    public static synchronized boolean onPowerSample() {
+        if (sLaunchTime == 0 || sFirstPowerDelay >= 0) return false;
+        sFirstPowerDelay = SystemClock.elapsedRealtime() - sLaunchTime;
+        return true;
+    }
+
+    /**
+     * @return The time from the launch to the first power sample, or -1 if not measured.
+     */
+    public static synchronized long getFirstPowerDelay() {
+        return sFirstPowerDelay;
+    }
+
+    public static synchronized boolean isDirectConnect() {
+        return sDirectConnect;
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Scan backend for API 18-20, built on {@code BluetoothAdapter.startLeScan}.
+ */
+public class LegacyScanBackend extends ScanBackend {
+    // Device scan callback.
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+
+                @Override
+                public void onLeScan(final BluetoothDevice device, int rssi, final byte[] scanRecord) {
+                    // The record is a fresh array for each callback, it can be queued as is.
+                    countCallback(1);
+                    mProcessor.enqueue(device, rssi, scanRecord);
+                }
+            };
+
+    public LegacyScanBackend(BluetoothAdapter adapter, ScanProcessor processor) {
+        super(adapter, processor);
+    }
+
+    @Override
+    public boolean start() {
+        return mBluetoothAdapter.startLeScan(mLeScanCallback);
+    }
+
+    @Override
+    public void stop() {
+        mBluetoothAdapter.stopLeScan(mLeScanCallback);
+    }
+}
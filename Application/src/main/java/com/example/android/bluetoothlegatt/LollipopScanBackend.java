@@ -0,0 +1,132 @@
+package com.example.android.bluetoothlegatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Scan backend for API 21 and above, built on {@code BluetoothLeScanner}.  The target services
+ * and manufacturers of the prefilter are installed as controller-side {@code ScanFilter}s.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class LollipopScanBackend extends ScanBackend {
+    private final static String TAG = LollipopScanBackend.class.getSimpleName();
+    private final List<ScanFilter> mFilters;
+    private final ScanSettings mSettings;
+    private BluetoothLeScanner mScanner;
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            countCallback(1);
+            enqueue(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            final int count = results.size();
+            countCallback(count);
+            mProcessor.beginBatch();
+            try {
+                for (int i = 0; i < count; i++) {
+                    enqueue(results.get(i));
+                }
+            } finally {
+                mProcessor.endBatch();
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed: " + errorCode);
+        }
+    };
+
+    public LollipopScanBackend(BluetoothAdapter adapter, ScanProcessor processor,
+                               ScanPrefilter prefilter, int mode) {
+        this(adapter, processor, prefilter, mode, 0);
+    }
+
+    /**
+     * @param reportDelayMillis If positive and the controller supports it, results are held
+     *                          and delivered in batches through onBatchScanResults.
+     */
+    public LollipopScanBackend(BluetoothAdapter adapter, ScanProcessor processor,
+                               ScanPrefilter prefilter, int mode, long reportDelayMillis) {
+        super(adapter, processor);
+        mFilters = buildFilters(prefilter);
+        final ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(toScanSettingsMode(mode));
+        if (reportDelayMillis > 0) {
+            if (adapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(reportDelayMillis);
+            } else {
+                // The scan would fail with SCAN_FAILED_FEATURE_UNSUPPORTED.
+                Log.i(TAG, "Scan batching is not supported, results are delivered one by one.");
+            }
+        }
+        mSettings = settings.build();
+        if (!adapter.isOffloadedFilteringSupported()) {
+            Log.i(TAG, "Scan filters are not offloaded, they are applied by the stack.");
+        }
+    }
+
+    static List<ScanFilter> buildFilters(ScanPrefilter prefilter) {
+        final List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        for (UUID uuid : prefilter.getServiceUuids()) {
+            filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+        }
+        for (int companyId : prefilter.getManufacturerIds()) {
+            filters.add(new ScanFilter.Builder().setManufacturerData(companyId, new byte[0])
+                    .build());
+        }
+        return filters;
+    }
+
+    static int toScanSettingsMode(int mode) {
+        switch (mode) {
+            case MODE_LOW_POWER:
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+            case MODE_BALANCED:
+                return ScanSettings.SCAN_MODE_BALANCED;
+            default:
+                return ScanSettings.SCAN_MODE_LOW_LATENCY;
+        }
+    }
+
+    @Override
+    public boolean start() {
+        mScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (mScanner == null) {
+            // Bluetooth is off.
+            return false;
+        }
+        mScanner.startScan(mFilters, mSettings, mScanCallback);
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        if (mScanner != null) {
+            mScanner.stopScan(mScanCallback);
+            mScanner = null;
+        }
+    }
+
+    private void enqueue(ScanResult result) {
+        final ScanRecord record = result.getScanRecord();
+        if (record == null) return;
+        mProcessor.enqueue(result.getDevice(), result.getRssi(), record.getBytes());
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * In-process publish/subscribe bus for decoded sensor metrics.  Replaces the per-sample
+ * {@code sendBroadcast} of {@code ACTION_DATA_AVAILABLE}: values are handed to the registered
+ * {@link MetricsListener}s as primitives, without Intents, Bundles or boxing.
+ * <p/>
+ * Registration copies the listener array, publishing only reads it, so publishing allocates
+ * nothing and never blocks on a lock.
+ */
+public class MetricsBus {
+    private static final MetricsListener[] NO_LISTENERS = new MetricsListener[0];
+
+    private volatile MetricsListener[] mListeners = NO_LISTENERS;
+
+    public synchronized void register(MetricsListener listener) {
+        final MetricsListener[] current = mListeners;
+        for (MetricsListener l : current) {
+            if (l == listener) return;
+        }
+        final MetricsListener[] updated = new MetricsListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        mListeners = updated;
+    }
+
+    public synchronized void unregister(MetricsListener listener) {
+        final MetricsListener[] current = mListeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                if (current.length == 1) {
+                    mListeners = NO_LISTENERS;
+                    return;
+                }
+                final MetricsListener[] updated = new MetricsListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                mListeners = updated;
+                return;
+            }
+        }
+    }
+
+    public boolean hasListeners() {
+        return mListeners.length > 0;
+    }
+
+    public void publishPower(int source, int watts) {
+        final MetricsListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onPower(source, watts);
+        }
+    }
+
+    public void publishSpeed(int source, double kmh) {
+        final MetricsListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onSpeed(source, kmh);
+        }
+    }
+
+    public void publishCadence(int source, int rpm) {
+        final MetricsListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onCadence(source, rpm);
+        }
+    }
+
+    public void publishHeartRate(int source, int bpm) {
+        final MetricsListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onHeartRate(source, bpm);
+        }
+    }
+
+    public void publishRrIntervals(int source, int[] rrIntervals, int count) {
+        final MetricsListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onRrIntervals(source, rrIntervals, count);
+        }
+    }
+
+    public void publishOorFlag(int source, int flag) {
+        final MetricsListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onOorFlag(source, flag);
+        }
+    }
+}
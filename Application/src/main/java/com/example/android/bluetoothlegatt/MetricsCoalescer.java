@@ -0,0 +1,244 @@
+package com.example.android.bluetoothlegatt;
+
+import android.view.Choreographer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces the metrics received from the {@link MetricsBus} into at most one UI update per
+ * display frame.
+ * <p/>
+ * Only the latest value of each metric is kept.  The first metric received after an update
+ * schedules a {@link Choreographer} frame callback; when the frame comes, every metric that
+ * changed since the last update is handed to the {@link Display}, the others are skipped.
+ * The update rate can be capped below the display refresh rate.
+ * <p/>
+ * When several sessions publish the same metric, e.g. a trainer and a separate power meter,
+ * each metric follows a single source instead of interleaving their values: the first source
+ * heard is kept until it has been silent for {@link #SOURCE_TIMEOUT_NANOS}, then the next one
+ * heard takes over.
+ * <p/>
+ * Must be created on the UI thread.  The {@link MetricsListener} callbacks can be invoked from
+ * any thread.
+ */
+public class MetricsCoalescer implements MetricsListener, Choreographer.FrameCallback {
+    private static final int DIRTY_POWER = 0x01;
+    private static final int DIRTY_SPEED = 0x02;
+    private static final int DIRTY_CADENCE = 0x04;
+    private static final int DIRTY_HEART_RATE = 0x08;
+    private static final int DIRTY_OOR_FLAG = 0x10;
+    private static final int METRIC_POWER = 0;
+    private static final int METRIC_SPEED = 1;
+    private static final int METRIC_CADENCE = 2;
+    private static final int METRIC_HEART_RATE = 3;
+    private static final int METRIC_OOR_FLAG = 4;
+    private static final int METRIC_COUNT = 5;
+    private static final int NO_SOURCE = Integer.MIN_VALUE;
+    // A metric switches to another source after this long without a value from its own.
+    private static final long SOURCE_TIMEOUT_NANOS = 3000000000L;
+    private final Display mDisplay;
+    private final Choreographer mChoreographer;
+    private final long mMinFrameIntervalNanos;
+    private final AtomicInteger mDirty = new AtomicInteger();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile int mPower;
+    private volatile double mSpeed;
+    private volatile int mCadence;
+    private volatile int mHeartRate;
+    private volatile int mOorFlag;
+    private volatile boolean mStarted;
+    // Source each metric follows and when it last published, guarded by mSources.
+    private final int[] mSources = new int[METRIC_COUNT];
+    private final long[] mSourceNanos = new long[METRIC_COUNT];
+    // Values last handed to the display, only touched on the UI thread.
+    private long mLastUpdateNanos;
+    private int mShownPower = Integer.MIN_VALUE;
+    private int mShownSpeedTenths = Integer.MIN_VALUE;
+    private int mShownCadence = Integer.MIN_VALUE;
+    private int mShownHeartRate = Integer.MIN_VALUE;
+    private int mShownOorFlag = Integer.MIN_VALUE;
+
+    /**
+     * @param display            Receives the coalesced updates on the UI thread.
+     * @param maxUpdatesPerSecond Cap on the update rate, 0 to update on every frame.
+     */
+    public MetricsCoalescer(Display display, int maxUpdatesPerSecond) {
+        mDisplay = display;
+        mChoreographer = Choreographer.getInstance();
+        mMinFrameIntervalNanos = maxUpdatesPerSecond > 0 ? 1000000000L / maxUpdatesPerSecond : 0;
+        Arrays.fill(mSources, NO_SOURCE);
+    }
+
+    /**
+     * Starts delivering updates, e.g. from {@code onResume}.  Metrics received while stopped
+     * are shown on the first frame.
+     */
+    public void start() {
+        mStarted = true;
+        if (mDirty.get() != 0) {
+            schedule();
+        }
+    }
+
+    /**
+     * Stops delivering updates, e.g. from {@code onPause}.  Metrics keep being coalesced.
+     */
+    public void stop() {
+        mStarted = false;
+        mChoreographer.removeFrameCallback(this);
+        mScheduled.set(false);
+    }
+
+    /**
+     * Forgets the values last shown, so that the next update shows every metric again.
+     */
+    public void invalidate() {
+        mShownPower = Integer.MIN_VALUE;
+        mShownSpeedTenths = Integer.MIN_VALUE;
+        mShownCadence = Integer.MIN_VALUE;
+        mShownHeartRate = Integer.MIN_VALUE;
+        mShownOorFlag = Integer.MIN_VALUE;
+    }
+
+    @Override
+    public void onPower(int source, int watts) {
+        if (!follow(METRIC_POWER, source)) return;
+        mPower = watts;
+        markDirty(DIRTY_POWER);
+    }
+
+    @Override
+    public void onSpeed(int source, double kmh) {
+        if (!follow(METRIC_SPEED, source)) return;
+        mSpeed = kmh;
+        markDirty(DIRTY_SPEED);
+    }
+
+    @Override
+    public void onCadence(int source, int rpm) {
+        if (!follow(METRIC_CADENCE, source)) return;
+        mCadence = rpm;
+        markDirty(DIRTY_CADENCE);
+    }
+
+    @Override
+    public void onHeartRate(int source, int bpm) {
+        if (!follow(METRIC_HEART_RATE, source)) return;
+        mHeartRate = bpm;
+        markDirty(DIRTY_HEART_RATE);
+    }
+
+    @Override
+    public void onRrIntervals(int source, int[] rrIntervals, int count) {
+        // Not displayed.
+    }
+
+    @Override
+    public void onOorFlag(int source, int flag) {
+        if (!follow(METRIC_OOR_FLAG, source)) return;
+        mOorFlag = flag;
+        markDirty(DIRTY_OOR_FLAG);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mStarted) {
+            mScheduled.set(false);
+            return;
+        }
+        if (frameTimeNanos - mLastUpdateNanos < mMinFrameIntervalNanos) {
+            // Too early for the configured rate, try again on the next frame.
+            mChoreographer.postFrameCallback(this);
+            return;
+        }
+        mLastUpdateNanos = frameTimeNanos;
+        // Clear the flag before reading, a metric arriving now schedules the next frame.
+        mScheduled.set(false);
+        final int dirty = mDirty.getAndSet(0);
+
+        if ((dirty & DIRTY_POWER) != 0) {
+            final int power = mPower;
+            if (power != mShownPower) {
+                mShownPower = power;
+                mDisplay.showPower(power);
+            }
+        }
+        if ((dirty & DIRTY_SPEED) != 0) {
+            final double speed = mSpeed;
+            final int tenths = (int) Math.round(speed * 10);
+            if (tenths != mShownSpeedTenths) {
+                mShownSpeedTenths = tenths;
+                mDisplay.showSpeed(speed);
+            }
+        }
+        if ((dirty & DIRTY_CADENCE) != 0) {
+            final int cadence = mCadence;
+            if (cadence != mShownCadence) {
+                mShownCadence = cadence;
+                mDisplay.showCadence(cadence);
+            }
+        }
+        if ((dirty & DIRTY_HEART_RATE) != 0) {
+            final int heartRate = mHeartRate;
+            if (heartRate != mShownHeartRate) {
+                mShownHeartRate = heartRate;
+                mDisplay.showHeartRate(heartRate);
+            }
+        }
+        if ((dirty & DIRTY_OOR_FLAG) != 0) {
+            final int flag = mOorFlag;
+            if (flag != mShownOorFlag) {
+                mShownOorFlag = flag;
+                mDisplay.showOorFlag(flag);
+            }
+        }
+    }
+
+    // Returns whether the value of the source is the one to show for the metric.
+    private boolean follow(int metric, int source) {
+        final long now = System.nanoTime();
+        synchronized (mSources) {
+            final int followed = mSources[metric];
+            if (followed != source && followed != NO_SOURCE
+                    && now - mSourceNanos[metric] < SOURCE_TIMEOUT_NANOS) {
+                return false;
+            }
+            mSources[metric] = source;
+            mSourceNanos[metric] = now;
+            return true;
+        }
+    }
+
+    private void markDirty(int bit) {
+        int dirty;
+        do {
+            dirty = mDirty.get();
+        } while ((dirty & bit) == 0 && !mDirty.compareAndSet(dirty, dirty | bit));
+        if (mStarted) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Receives the coalesced metrics on the UI thread, only when their value changed.
+     */
+    public interface Display {
+        void showPower(int watts);
+
+        void showSpeed(double kmh);
+
+        void showCadence(int rpm);
+
+        void showHeartRate(int bpm);
+
+        void showOorFlag(int flag);
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Receives the decoded sensor metrics published on the {@link MetricsBus} of
+ * {@code BluetoothLeService}.
+ * <p/>
+ * Callbacks are invoked synchronously on the Bluetooth binder thread that delivered the
+ * notification.  Implementations must return quickly and hop to their own thread if they
+ * touch the UI.
+ * <p/>
+ * Every callback carries the id of the {@link GattSession} that decoded the value, so that a
+ * listener of the merged stream can tell e.g. the power of the trainer from the power of a
+ * separate power meter.
+ */
+public interface MetricsListener {
+    /**
+     * @param source Id of the session, see {@link GattSession#getId()}.
+     * @param watts Instantaneous power.
+     */
+    void onPower(int source, int watts);
+
+    /**
+     * @param kmh Speed from a CSC or Cycling Power sensor.
+     */
+    void onSpeed(int source, double kmh);
+
+    /**
+     * @param rpm Cadence from a CSC or Cycling Power sensor.
+     */
+    void onCadence(int source, int rpm);
+
+    /**
+     * @param bpm Heart rate.
+     */
+    void onHeartRate(int source, int bpm);
+
+    /**
+     * @param rrIntervals RR intervals in 1/1024 s.  The array is reused by the decoder, only
+     *                    the first {@code count} entries are valid and only during the call.
+     * @param count       Number of valid intervals.
+     */
+    void onRrIntervals(int source, int[] rrIntervals, int count);
+
+    /**
+     * @param flag Elite trainer out of range flag: -1 power too low, 1 too high, 0 in range.
+     */
+    void onOorFlag(int source, int flag);
+}
@@ -0,0 +1,70 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Reusable holder for a decoded Cycling Power Measurement notification.
+ * Filled by {@link SensorDecoder#decodeCyclingPower(byte[], PowerSample)}.
+ * <p/>
+ * Optional fields are only valid when the matching {@code m...Present} flag is set.
+ */
+public class PowerSample {
+    public int mFlags;
+    /** Instantaneous power in watts, sint16. */
+    public int mInstantaneousPower;
+
+    public boolean mPedalPowerBalancePresent;
+    /** Pedal power balance, uint8 in 1/2 %. */
+    public int mPedalPowerBalance;
+    /** True if the balance refers to the left pedal, false if the reference is unknown. */
+    public boolean mPedalPowerBalanceLeft;
+
+    public boolean mAccumulatedTorquePresent;
+    /** Accumulated torque, uint16 in 1/32 Nm. */
+    public int mAccumulatedTorque;
+    /** True if the torque is measured at the crank, false if at the wheel. */
+    public boolean mAccumulatedTorqueCrankBased;
+
+    public boolean mWheelPresent;
+    /** Cumulative wheel revolutions, uint32. */
+    public long mCumulativeWheelRevs;
+    /** Last wheel event time, uint16 in 1/2048 s. */
+    public int mLastWheelEventTime;
+
+    public boolean mCrankPresent;
+    /** Cumulative crank revolutions, uint16. */
+    public int mCumulativeCrankRevs;
+    /** Last crank event time, uint16 in 1/1024 s. */
+    public int mLastCrankEventTime;
+
+    public boolean mExtremeForcePresent;
+    /** Maximum force magnitude, sint16 in newtons. */
+    public int mMaxForce;
+    /** Minimum force magnitude, sint16 in newtons. */
+    public int mMinForce;
+
+    public boolean mExtremeTorquePresent;
+    /** Maximum torque magnitude, sint16 in 1/32 Nm. */
+    public int mMaxTorque;
+    /** Minimum torque magnitude, sint16 in 1/32 Nm. */
+    public int mMinTorque;
+
+    public boolean mExtremeAnglesPresent;
+    /** Angle of the maximum magnitude, uint12 in degrees. */
+    public int mMaxAngle;
+    /** Angle of the minimum magnitude, uint12 in degrees. */
+    public int mMinAngle;
+
+    public boolean mTopDeadSpotPresent;
+    /** Top dead spot angle, uint16 in degrees. */
+    public int mTopDeadSpotAngle;
+
+    public boolean mBottomDeadSpotPresent;
+    /** Bottom dead spot angle, uint16 in degrees. */
+    public int mBottomDeadSpotAngle;
+
+    public boolean mAccumulatedEnergyPresent;
+    /** Accumulated energy, uint16 in kJ. */
+    public int mAccumulatedEnergy;
+
+    /** Set when the sensor requests an offset compensation. */
+    public boolean mOffsetCompensation;
+}
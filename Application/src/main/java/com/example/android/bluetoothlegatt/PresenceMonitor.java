@@ -0,0 +1,122 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Background discovery of the target devices, for tablets left in a studio.
+ * <p/>
+ * Runs a continuous low power scan whose results the controller holds for
+ * {@link #REPORT_DELAY} and delivers in batches, instead of waking the process for each
+ * advertisement.  Each batch is drained in one pass into the shared {@link ScanDeviceRegistry},
+ * so the device list shows the trainers and straps that powered on meanwhile.
+ * <p/>
+ * After each batch the devices of the {@link KnownDeviceStore} are looked up in the registry:
+ * a known device seen for the first time since the monitor started, or again after
+ * {@link #ABSENCE_TIMEOUT} without advertising, is reported as present.  The monitor is hosted
+ * by {@link BluetoothLeService} so that it keeps running once the activities are gone.
+ * <p/>
+ * Only available on API 21 and above.
+ */
+public class PresenceMonitor {
+    private final static String TAG = PresenceMonitor.class.getSimpleName();
+    // Time the controller holds the scan results before delivering them.
+    private static final long REPORT_DELAY = 5000;
+    private static final int QUEUE_CAPACITY = 256;
+    // A known device not seen for this long is reported again when it shows up.
+    private static final long ABSENCE_TIMEOUT = 60000;
+
+    private final ScanDeviceRegistry mRegistry = ScanDeviceRegistry.getShared();
+    private final KnownDeviceStore mKnownDevices;
+    private final Listener mListener;
+    private final ScanProcessor mProcessor;
+    private final ScanBackend mBackend;
+    private boolean mRunning;
+    // Last time each known device was seen, only touched on the processing thread.
+    private final HashMap<String, Long> mKnownLastSeen = new HashMap<String, Long>();
+
+    public PresenceMonitor(BluetoothAdapter adapter, KnownDeviceStore knownDevices,
+                           Listener listener) {
+        mKnownDevices = knownDevices;
+        mListener = listener;
+        final ScanPrefilter prefilter = ScanPrefilter.createDefault();
+        mProcessor = new ScanProcessor(prefilter, mRegistry, new ScanProcessor.Listener() {
+            @Override
+            public void onDevicesUpdated() {
+                checkKnownDevices();
+                mListener.onDevicesUpdated();
+            }
+        }, QUEUE_CAPACITY);
+        mBackend = ScanBackend.createBatched(adapter, mProcessor, prefilter, REPORT_DELAY);
+    }
+
+    public boolean isSupported() {
+        return mBackend != null;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public boolean start() {
+        if (mRunning || mBackend == null) return mRunning;
+        mKnownLastSeen.clear();
+        mProcessor.start();
+        mRunning = mBackend.start();
+        if (!mRunning) mProcessor.stop();
+        return mRunning;
+    }
+
+    public void stop() {
+        if (!mRunning) return;
+        mBackend.stop();
+        mProcessor.stop();
+        mRunning = false;
+        Log.d(TAG, "Background discovery: " + this);
+    }
+
+    public long getWakeupsSaved() {
+        return mBackend == null ? 0 : mBackend.getWakeupsSaved();
+    }
+
+    // Runs on the processing thread, after a batch updated the registry.
+    private void checkKnownDevices() {
+        for (String address : mKnownDevices.getAddresses()) {
+            final long key = ScanDeviceRegistry.addressToLong(address);
+            final long lastSeen = mRegistry.getLastSeenOf(key);
+            if (lastSeen == 0) continue;
+            final Long previous = mKnownLastSeen.put(address, lastSeen);
+            if (previous == null || lastSeen - previous > ABSENCE_TIMEOUT) {
+                Log.i(TAG, "Known device present: " + address);
+                mListener.onKnownDevicePresent(address, mKnownDevices.getName(address),
+                        mRegistry.getCategoriesOf(key));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (mBackend == null) return "not supported";
+        return mBackend + ", " + mBackend.getWakeupsSaved() + " wakeups saved; " + mProcessor;
+    }
+
+    /**
+     * Notified on the scan processing thread.
+     */
+    public interface Listener {
+        /**
+         * Called after a batch updated the shared registry.
+         */
+        void onDevicesUpdated();
+
+        /**
+         * Called when a known device shows up.
+         *
+         * @param name       The name it was last used with, or null.
+         * @param categories Categories matched by the prefilter, see {@link ScanPrefilter}.
+         */
+        void onKnownDevicePresent(String address, String name, int categories);
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Initiates the connections of a {@link GattSession}, and reconnects it when its link drops.
+ * <p/>
+ * Attempts are spaced by an exponential backoff from {@link #BASE_DELAY} up to
+ * {@link #MAX_DELAY}, with half of each delay randomized so that the trainers of a studio
+ * dropping together do not retry in lockstep.  An attempt either reuses the
+ * {@code BluetoothGatt} with {@code connect()}, or closes it and opens a new one with
+ * {@code connectGatt()}.  The method with the better success rate so far is used, reuse on a
+ * tie since it keeps the stack state.  After a status 133 (GATT_ERROR) or an attempt that did
+ * not complete within {@link #ATTEMPT_TIMEOUT}, the next attempt always starts from a new
+ * {@code BluetoothGatt}: the stack cannot recover the old one.
+ * <p/>
+ * When its delay is over, an attempt waits for the {@link ConnectGate} shared by the pool, so
+ * that the sessions connect one at a time.  The gate is held until the attempt connected,
+ * failed or timed out; the connection of a timed out attempt is aborted, so that it does not
+ * overlap the next one.
+ * <p/>
+ * A device that never connected is only tried once, within {@link #FIRST_ATTEMPT_TIMEOUT}:
+ * a device used once and out of range must not keep the gate from the trainers that really
+ * dropped.  A link lost is retried up to {@link #MAX_FAILURES} times.  Once the engine gave
+ * up, the device is left to the background discovery, see {@link PresenceMonitor}.
+ */
+public class ReconnectEngine {
+    public static final int METHOD_REUSE = 0;
+    public static final int METHOD_FRESH = 1;
+    // Generic failure of the Android stack, e.g. when it ran out of connection slots.
+    public static final int STATUS_GATT_ERROR = 133;
+    private final static String TAG = ReconnectEngine.class.getSimpleName();
+    private static final long BASE_DELAY = 500;
+    private static final long MAX_DELAY = 30000;
+    private static final long ATTEMPT_TIMEOUT = 15000;
+    // Timeout of the attempt of a device that never connected, usually out of range.
+    private static final long FIRST_ATTEMPT_TIMEOUT = 5000;
+    private static final int MAX_FAILURES = 8;
+
+    private final ConnectGate mGate;
+    private final Target mTarget;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+
+    // Guarded by "this".
+    private boolean mActive;
+    private boolean mEverConnected;
+    private boolean mAttemptPending;
+    private int mAttemptMethod;
+    private int mFailures;
+    private boolean mForceFresh;
+    private final int[] mAttempts = new int[2];
+    private final int[] mSuccesses = new int[2];
+
+    private final Runnable mAttempt = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectEngine.this) {
+                if (!mActive || mAttemptPending) return;
+                mGate.request(mGateClient);
+            }
+        }
+    };
+    private final ConnectGate.Client mGateClient = new ConnectGate.Client() {
+        @Override
+        public void onGateOpen() {
+            attempt();
+        }
+
+        @Override
+        public String toString() {
+            return mTarget.toString();
+        }
+    };
+    private final Runnable mAttemptTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectEngine.this) {
+                if (!mAttemptPending) return;
+                Log.w(TAG, mTarget + ": connection attempt timed out");
+                onAttemptFailed();
+                retryOrGiveUp();
+            }
+            // The stack would keep the connection pending for about 30 s.
+            mTarget.abort();
+        }
+    };
+
+    public ReconnectEngine(ConnectGate gate, Target target) {
+        mGate = gate;
+        mTarget = target;
+    }
+
+    /**
+     * Starts a connection requested by the user, through the gate right away.
+     */
+    public synchronized void connect() {
+        mHandler.removeCallbacks(mAttempt);
+        mActive = true;
+        mFailures = 0;
+        if (!mAttemptPending) mGate.request(mGateClient);
+    }
+
+    /**
+     * Called when the link dropped or a connection attempt failed while the session should be
+     * connected.  Schedules the next attempt, unless the engine gives up.
+     *
+     * @param status Status of the disconnection.
+     */
+    public synchronized void onDisconnected(int status) {
+        if (status == STATUS_GATT_ERROR) {
+            mForceFresh = true;
+        }
+        if (mAttemptPending) {
+            onAttemptFailed();
+            retryOrGiveUp();
+        } else if (mEverConnected) {
+            // The link dropped, a new series of attempts.
+            mActive = true;
+            mFailures = 0;
+            scheduleAttempt();
+        }
+    }
+
+    public synchronized void onConnected() {
+        mHandler.removeCallbacks(mAttempt);
+        mHandler.removeCallbacks(mAttemptTimeout);
+        mGate.release(mGateClient);
+        if (mAttemptPending) {
+            mAttemptPending = false;
+            mSuccesses[mAttemptMethod]++;
+            Log.i(TAG, mTarget + ": reconnected after " + (mFailures + 1) + " attempts, "
+                    + this);
+        }
+        mActive = false;
+        mEverConnected = true;
+        mFailures = 0;
+        mForceFresh = false;
+    }
+
+    /**
+     * Stops reconnecting, e.g. when the session is disconnected on purpose.
+     */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mAttempt);
+        mHandler.removeCallbacks(mAttemptTimeout);
+        mGate.release(mGateClient);
+        mActive = false;
+        mAttemptPending = false;
+        mFailures = 0;
+    }
+
+    /**
+     * @return True while connection attempts are scheduled or pending.
+     */
+    public synchronized boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * @return The share of successful attempts of a method, 0 to 1, smoothed so that an
+     * untried method is not ruled out.
+     */
+    public synchronized float getSuccessRate(int method) {
+        return (mSuccesses[method] + 1f) / (mAttempts[method] + 2f);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "reuse " + mSuccesses[METHOD_REUSE] + "/" + mAttempts[METHOD_REUSE]
+                + ", fresh " + mSuccesses[METHOD_FRESH] + "/" + mAttempts[METHOD_FRESH]
+                + " attempts succeeded";
+    }
+
+    // Called with the lock held.
+    private void onAttemptFailed() {
+        mHandler.removeCallbacks(mAttemptTimeout);
+        mGate.release(mGateClient);
+        mAttemptPending = false;
+        mFailures++;
+    }
+
+    // Called with the lock held, after a failed attempt.  The caller aborts the connection of
+    // the attempt when the engine gives up.
+    private boolean retryOrGiveUp() {
+        if (mEverConnected && mFailures < MAX_FAILURES) {
+            scheduleAttempt();
+            return false;
+        }
+        Log.i(TAG, mTarget + ": giving up after " + mFailures + " attempts, " + this);
+        mHandler.removeCallbacks(mAttempt);
+        mActive = false;
+        mFailures = 0;
+        return true;
+    }
+
+    // Called with the lock held.
+    private void scheduleAttempt() {
+        final long delay = Math.min(BASE_DELAY << Math.min(mFailures, 16), MAX_DELAY);
+        final long jittered = delay / 2 + (long) (mRandom.nextDouble() * delay / 2);
+        mHandler.removeCallbacks(mAttempt);
+        mHandler.postDelayed(mAttempt, jittered);
+    }
+
+    private void attempt() {
+        final int method;
+        synchronized (this) {
+            if (!mActive || mAttemptPending) {
+                mGate.release(mGateClient);
+                return;
+            }
+            if (mForceFresh || !mTarget.canReuse()) {
+                method = METHOD_FRESH;
+            } else {
+                method = getSuccessRate(METHOD_REUSE) >= getSuccessRate(METHOD_FRESH)
+                        ? METHOD_REUSE : METHOD_FRESH;
+            }
+            mForceFresh = false;
+            mAttemptPending = true;
+            mAttemptMethod = method;
+            mAttempts[method]++;
+            mHandler.postDelayed(mAttemptTimeout,
+                    mEverConnected ? ATTEMPT_TIMEOUT : FIRST_ATTEMPT_TIMEOUT);
+        }
+        Log.d(TAG, mTarget + ": connection attempt "
+                + (method == METHOD_REUSE ? "reusing the connection" : "with a new connection"));
+        if (!mTarget.reconnect(method == METHOD_FRESH)) {
+            final boolean gaveUp;
+            synchronized (this) {
+                if (!mAttemptPending) return;
+                onAttemptFailed();
+                mForceFresh = true;
+                gaveUp = retryOrGiveUp();
+            }
+            if (gaveUp) mTarget.abort();
+        }
+    }
+
+    /**
+     * The connection to reconnect.
+     */
+    public interface Target {
+        /**
+         * @return True if there is a {@code BluetoothGatt} that {@code connect()} can reuse.
+         */
+        boolean canReuse();
+
+        /**
+         * Initiates a connection.
+         *
+         * @param fresh True to close the {@code BluetoothGatt} and open a new one.
+         * @return True if the connection was initiated.
+         */
+        boolean reconnect(boolean fresh);
+
+        /**
+         * Aborts the connection of an attempt that timed out or after which the engine gave up,
+         * and reports the session disconnected.  Called on the main thread.
+         */
+        void abort();
+    }
+}
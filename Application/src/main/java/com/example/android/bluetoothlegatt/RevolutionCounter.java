@@ -0,0 +1,120 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Turns successive (cumulative revolutions, last event time) pairs of a wheel or crank
+ * sensor into a revolution rate.
+ * <p/>
+ * Both counters roll over: the revolutions are uint32 (wheel) or uint16 (crank) and the event
+ * time is a uint16 in 1/1024 s or 1/2048 s, so it wraps every 64 s or 32 s.  Deltas are
+ * therefore computed modulo the counter size.  A repeated event time is not a new
+ * revolution: the last rate is kept until no new event arrives for {@code staleMillis}, then
+ * the rate drops to zero.  Deltas that cannot be trusted (the event time may have wrapped
+ * more than once, or the counter jumped because the sensor was reset) only re-arm the
+ * baseline.
+ */
+public class RevolutionCounter {
+    public static final long UINT32_MASK = 0xFFFFFFFFL;
+    public static final long UINT16_MASK = 0xFFFFL;
+    private static final int EVENT_TIME_MASK = 0xFFFF;
+
+    private final long mRevolutionMask;
+    private final int mTicksPerSecond;
+    private final double mMaxRevolutionsPerSecond;
+    private final long mStaleMillis;
+    private final long mWrapMillis;
+
+    private boolean mHasBaseline;
+    private long mPrevRevolutions;
+    private int mPrevEventTime;
+    private long mPrevEventMillis;
+    private double mRevolutionsPerSecond;
+
+    /**
+     * @param revolutionMask         {@link #UINT32_MASK} or {@link #UINT16_MASK}.
+     * @param ticksPerSecond         Event time resolution, 1024 or 2048.
+     * @param maxRevolutionsPerSecond Rates above this are treated as a counter reset.
+     * @param staleMillis            Time without new events after which the rate is zero.
+     */
+    public RevolutionCounter(long revolutionMask, int ticksPerSecond,
+                             double maxRevolutionsPerSecond, long staleMillis) {
+        mRevolutionMask = revolutionMask;
+        mTicksPerSecond = ticksPerSecond;
+        mMaxRevolutionsPerSecond = maxRevolutionsPerSecond;
+        mStaleMillis = staleMillis;
+        mWrapMillis = (EVENT_TIME_MASK + 1) * 1000L / ticksPerSecond;
+    }
+
+    /**
+     * Feeds a new measurement.
+     *
+     * @param revolutions Cumulative revolutions as sent by the sensor.
+     * @param eventTime   Last event time as sent by the sensor.
+     * @param nowMillis   Local receive time, e.g. {@code SystemClock.elapsedRealtime()}.
+     * @return true if a new rate was computed from this measurement.
+     */
+    public boolean update(long revolutions, int eventTime, long nowMillis) {
+        revolutions &= mRevolutionMask;
+        eventTime &= EVENT_TIME_MASK;
+        if (!mHasBaseline) {
+            setBaseline(revolutions, eventTime, nowMillis);
+            return false;
+        }
+
+        final long revolutionDelta = (revolutions - mPrevRevolutions) & mRevolutionMask;
+        final int timeDelta = (eventTime - mPrevEventTime) & EVENT_TIME_MASK;
+        if (timeDelta == 0) {
+            // No new event since the last notification.
+            if (revolutionDelta != 0) {
+                setBaseline(revolutions, eventTime, nowMillis);
+                mRevolutionsPerSecond = 0;
+            } else if (nowMillis - mPrevEventMillis > mStaleMillis) {
+                mRevolutionsPerSecond = 0;
+            }
+            return false;
+        }
+        if (nowMillis - mPrevEventMillis >= mWrapMillis) {
+            // The event time may have wrapped more than once, the delta is ambiguous.
+            setBaseline(revolutions, eventTime, nowMillis);
+            mRevolutionsPerSecond = 0;
+            return false;
+        }
+
+        final double rate = (double) revolutionDelta * mTicksPerSecond / timeDelta;
+        if (rate > mMaxRevolutionsPerSecond) {
+            setBaseline(revolutions, eventTime, nowMillis);
+            return false;
+        }
+        mRevolutionsPerSecond = rate;
+        setBaseline(revolutions, eventTime, nowMillis);
+        return true;
+    }
+
+    /**
+     * Checks for staleness without a new measurement, e.g. when the sensor stops notifying.
+     */
+    public void checkStale(long nowMillis) {
+        if (mHasBaseline && nowMillis - mPrevEventMillis > mStaleMillis) {
+            mRevolutionsPerSecond = 0;
+        }
+    }
+
+    public double getRevolutionsPerSecond() {
+        return mRevolutionsPerSecond;
+    }
+
+    public double getRevolutionsPerMinute() {
+        return mRevolutionsPerSecond * 60;
+    }
+
+    public void reset() {
+        mHasBaseline = false;
+        mRevolutionsPerSecond = 0;
+    }
+
+    private void setBaseline(long revolutions, int eventTime, long nowMillis) {
+        mPrevRevolutions = revolutions;
+        mPrevEventTime = eventTime;
+        mPrevEventMillis = nowMillis;
+        mHasBaseline = true;
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Build;
+
+/**
+ * Source of scan results feeding a {@link ScanProcessor}.
+ * <p/>
+ * On API 21 and above the results come from {@code BluetoothLeScanner}, with the target
+ * services of the {@link ScanPrefilter} pushed to the controller as {@code ScanFilter}s, so
+ * that the other advertisements do not even wake the application where the chip supports
+ * filter offloading.  On API 18-20 the legacy {@code startLeScan} is used and every
+ * advertisement goes through the prefilter.
+ */
+public abstract class ScanBackend {
+    // Scan mode presets, mapped to ScanSettings modes on API 21.  Ignored by the legacy scan.
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    protected final BluetoothAdapter mBluetoothAdapter;
+    protected final ScanProcessor mProcessor;
+
+    // Callbacks received and results they carried, guarded by "this".
+    private long mCallbackCount;
+    private long mResultCount;
+
+    protected ScanBackend(BluetoothAdapter adapter, ScanProcessor processor) {
+        mBluetoothAdapter = adapter;
+        mProcessor = processor;
+    }
+
+    /**
+     * Creates the best backend for the running platform.
+     *
+     * @param prefilter Targets to offload to the controller, when supported.
+     * @param mode      One of the {@code MODE_} presets.
+     */
+    public static ScanBackend create(BluetoothAdapter adapter, ScanProcessor processor,
+                                     ScanPrefilter prefilter, int mode) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new LollipopScanBackend(adapter, processor, prefilter, mode);
+        }
+        return new LegacyScanBackend(adapter, processor);
+    }
+
+    /**
+     * Creates a low power backend whose results are delivered in batches.
+     *
+     * @param reportDelayMillis Time the controller holds the results before delivering them.
+     * @return The backend, or null below API 21 where batching is not available.
+     */
+    public static ScanBackend createBatched(BluetoothAdapter adapter, ScanProcessor processor,
+                                            ScanPrefilter prefilter, long reportDelayMillis) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new LollipopScanBackend(adapter, processor, prefilter, MODE_LOW_POWER,
+                    reportDelayMillis);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the scan was started.
+     */
+    public abstract boolean start();
+
+    public abstract void stop();
+
+    protected synchronized void countCallback(int results) {
+        mCallbackCount++;
+        mResultCount += results;
+    }
+
+    public synchronized long getCallbackCount() {
+        return mCallbackCount;
+    }
+
+    public synchronized long getResultCount() {
+        return mResultCount;
+    }
+
+    /**
+     * @return The number of callbacks avoided by batching, compared with one per result.
+     */
+    public synchronized long getWakeupsSaved() {
+        return mResultCount - mCallbackCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mResultCount + " results in " + mCallbackCount + " callbacks";
+    }
+}
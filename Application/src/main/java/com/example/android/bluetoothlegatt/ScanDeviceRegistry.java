@@ -0,0 +1,255 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Arrays;
+
+/**
+ * Devices found by scanning, keyed by their MAC address packed in a {@code long}.
+ * <p/>
+ * For each device the registry keeps the last time it was seen, a smoothed RSSI, the number of
+ * advertisements received, the categories matched by the {@link ScanPrefilter} and the parsed
+ * local name.  Devices keep the position at which they were first found.
+ * <p/>
+ * Updates come from the scan thread and are only made visible to the UI in batches: the UI
+ * calls {@link #publish()} at a bounded rate and refreshes the list once for all the
+ * advertisements received meanwhile.  {@link #getCount()} and the getters by position only see
+ * published devices, so the list adapter stays consistent between two refreshes.
+ */
+public class ScanDeviceRegistry {
+    // Weight of a new RSSI sample in the smoothed value.
+    private static final float RSSI_SMOOTHING = 0.25f;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Open-addressing index from address to position + 1.
+    private long[] mIndexKeys = new long[INITIAL_CAPACITY * 2];
+    private int[] mIndexPositions = new int[INITIAL_CAPACITY * 2];
+
+    // Device data by position.
+    private long[] mAddresses = new long[INITIAL_CAPACITY];
+    private BluetoothDevice[] mDevices = new BluetoothDevice[INITIAL_CAPACITY];
+    private String[] mNames = new String[INITIAL_CAPACITY];
+    private long[] mLastSeen = new long[INITIAL_CAPACITY];
+    private float[] mRssi = new float[INITIAL_CAPACITY];
+    private int[] mAdvertisementCount = new int[INITIAL_CAPACITY];
+    private int[] mCategories = new int[INITIAL_CAPACITY];
+    private int mSize;
+
+    // Batching state.
+    private int mPublishedSize;
+    private boolean mChanged;
+
+    private static ScanDeviceRegistry sShared;
+
+    /**
+     * @return The registry shared by the device list and the background discovery.
+     */
+    public static synchronized ScanDeviceRegistry getShared() {
+        if (sShared == null) {
+            sShared = new ScanDeviceRegistry();
+        }
+        return sShared;
+    }
+
+    /**
+     * Parses a MAC address such as {@code "00:11:22:AA:BB:CC"} into a long, without allocating.
+     *
+     * @return The address, or -1 if it is malformed.
+     */
+    public static long addressToLong(String address) {
+        if (address == null || address.length() != 17) return -1;
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            final char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return -1;
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) return -1;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Records an advertisement.
+     *
+     * @param name       The local name, or null if the advertisement does not carry one.
+     * @param categories Categories matched by the prefilter.
+     * @return true if the device is new.
+     */
+    public synchronized boolean update(long address, BluetoothDevice device, int rssi,
+                                       long nowMillis, String name, int categories) {
+        int position = find(address);
+        final boolean added = position < 0;
+        if (added) {
+            position = append(address, device);
+            mRssi[position] = rssi;
+        } else {
+            mRssi[position] += (rssi - mRssi[position]) * RSSI_SMOOTHING;
+        }
+        mLastSeen[position] = nowMillis;
+        mAdvertisementCount[position]++;
+        mCategories[position] |= categories;
+        if (name != null) {
+            mNames[position] = name;
+        }
+        mChanged = true;
+        return added;
+    }
+
+    /**
+     * @return true if the device is known and has a name, so the caller can skip parsing it.
+     */
+    public synchronized boolean hasName(long address) {
+        final int position = find(address);
+        return position >= 0 && mNames[position] != null;
+    }
+
+    /**
+     * @return true if something changed since the last {@link #publish()}.
+     */
+    public synchronized boolean hasChanges() {
+        return mChanged;
+    }
+
+    /**
+     * Makes the devices added since the last call visible to the getters by position.
+     *
+     * @return true if anything changed, i.e. if the list must be refreshed.
+     */
+    public synchronized boolean publish() {
+        final boolean changed = mChanged;
+        mPublishedSize = mSize;
+        mChanged = false;
+        return changed;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mDevices[i] = null;
+            mNames[i] = null;
+            mAdvertisementCount[i] = 0;
+            mCategories[i] = 0;
+        }
+        Arrays.fill(mIndexPositions, 0);
+        mSize = 0;
+        mPublishedSize = 0;
+        mChanged = true;
+    }
+
+    /**
+     * @return The number of devices recorded, published or not.
+     */
+    public synchronized int getDiscoveredCount() {
+        return mSize;
+    }
+
+    /**
+     * @return The last time the device was seen, or 0 if it is unknown.
+     */
+    public synchronized long getLastSeenOf(long address) {
+        final int position = find(address);
+        return position < 0 ? 0 : mLastSeen[position];
+    }
+
+    /**
+     * @return The categories matched by the advertisements of the device, or 0 if it is
+     * unknown.
+     */
+    public synchronized int getCategoriesOf(long address) {
+        final int position = find(address);
+        return position < 0 ? 0 : mCategories[position];
+    }
+
+    /**
+     * @return The number of published devices.
+     */
+    public synchronized int getCount() {
+        return mPublishedSize;
+    }
+
+    public synchronized BluetoothDevice getDevice(int position) {
+        return mDevices[position];
+    }
+
+    public synchronized long getAddress(int position) {
+        return mAddresses[position];
+    }
+
+    public synchronized String getName(int position) {
+        return mNames[position];
+    }
+
+    public synchronized long getLastSeen(int position) {
+        return mLastSeen[position];
+    }
+
+    public synchronized int getRssi(int position) {
+        return Math.round(mRssi[position]);
+    }
+
+    public synchronized int getAdvertisementCount(int position) {
+        return mAdvertisementCount[position];
+    }
+
+    public synchronized int getCategories(int position) {
+        return mCategories[position];
+    }
+
+    private int find(long address) {
+        final int mask = mIndexKeys.length - 1;
+        int i = hash(address) & mask;
+        while (mIndexPositions[i] != 0) {
+            if (mIndexKeys[i] == address) return mIndexPositions[i] - 1;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int append(long address, BluetoothDevice device) {
+        if (mSize == mAddresses.length) {
+            grow();
+        }
+        final int position = mSize++;
+        mAddresses[position] = address;
+        mDevices[position] = device;
+        mNames[position] = null;
+        mAdvertisementCount[position] = 0;
+        mCategories[position] = 0;
+        index(address, position);
+        return position;
+    }
+
+    private void index(long address, int position) {
+        final int mask = mIndexKeys.length - 1;
+        int i = hash(address) & mask;
+        while (mIndexPositions[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        mIndexKeys[i] = address;
+        mIndexPositions[i] = position + 1;
+    }
+
+    private void grow() {
+        final int capacity = mAddresses.length * 2;
+        mAddresses = Arrays.copyOf(mAddresses, capacity);
+        mDevices = Arrays.copyOf(mDevices, capacity);
+        mNames = Arrays.copyOf(mNames, capacity);
+        mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+        mRssi = Arrays.copyOf(mRssi, capacity);
+        mAdvertisementCount = Arrays.copyOf(mAdvertisementCount, capacity);
+        mCategories = Arrays.copyOf(mCategories, capacity);
+        mIndexKeys = new long[capacity * 2];
+        mIndexPositions = new int[capacity * 2];
+        for (int i = 0; i < mSize; i++) {
+            index(mAddresses[i], i);
+        }
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
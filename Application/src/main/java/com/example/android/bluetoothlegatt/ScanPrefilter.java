@@ -0,0 +1,145 @@
+package com.example.android.bluetoothlegatt;
+
+import com.example.bluetoothgatt.AdCursor;
+import com.example.bluetoothgatt.AdRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Matches raw advertisements against a set of target service UUIDs (16, 32 or 128-bit,
+ * complete or incomplete lists) and manufacturer identifiers, before any object is created
+ * for the device.
+ * <p/>
+ * Each target belongs to one or more categories (trainer, power meter, ...).  The record is
+ * walked once and every UUID found is looked up in O(1) in a {@link UuidIntMap}, so the cost of
+ * a match depends on the size of the advertisement, not on the number of targets.
+ * <p/>
+ * Not thread safe: use one instance per scan callback thread.
+ */
+public class ScanPrefilter {
+    public static final int CATEGORY_TRAINER = 0x01;
+    public static final int CATEGORY_POWER = 0x02;
+    public static final int CATEGORY_SPEED_CADENCE = 0x04;
+    public static final int CATEGORY_HEART_RATE = 0x08;
+
+    private static final int HEART_RATE_SERVICE = 0x180D;
+    private static final int CYCLING_SPEED_AND_CADENCE_SERVICE = 0x1816;
+    private static final int CYCLING_POWER_SERVICE = 0x1818;
+
+    private final UuidIntMap mServiceUuids = new UuidIntMap();
+    // Company identifiers, stored in the 16/32-bit table of the map.
+    private final UuidIntMap mManufacturerIds = new UuidIntMap();
+    private final AdCursor mCursor = new AdCursor();
+    // Targets as configured, for the controller-side scan filters.
+    private final List<UUID> mServiceUuidList = new ArrayList<UUID>();
+    private final List<Integer> mManufacturerIdList = new ArrayList<Integer>();
+    // Local name found by the last match.
+    private int mNameOffset;
+    private int mNameLength;
+
+    /**
+     * Creates a prefilter for the devices the application can drive: Elite trainers, power
+     * meters, speed/cadence sensors and heart rate straps.
+     */
+    public static ScanPrefilter createDefault() {
+        final ScanPrefilter filter = new ScanPrefilter();
+        filter.addServiceUuid(UUID.fromString(SampleGattAttributes.ELITE_TRAINER_SERVICE),
+                CATEGORY_TRAINER);
+        filter.addServiceUuid16(CYCLING_POWER_SERVICE, CATEGORY_POWER);
+        filter.addServiceUuid16(CYCLING_SPEED_AND_CADENCE_SERVICE, CATEGORY_SPEED_CADENCE);
+        filter.addServiceUuid16(HEART_RATE_SERVICE, CATEGORY_HEART_RATE);
+        return filter;
+    }
+
+    /**
+     * Adds a target service.  SIG-based UUIDs also match when advertised in 16 or 32-bit form.
+     */
+    public void addServiceUuid(UUID uuid, int category) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        mServiceUuids.put(msb, lsb, mServiceUuids.get(msb, lsb) | category);
+        if (!mServiceUuidList.contains(uuid)) mServiceUuidList.add(uuid);
+    }
+
+    public void addServiceUuid16(int uuid16, int category) {
+        addServiceUuid(new UUID(UuidIntMap.sigMsb(uuid16), UuidIntMap.SIG_BASE_LSB), category);
+    }
+
+    public void addManufacturerId(int companyId, int category) {
+        mManufacturerIds.putAlias(companyId, mManufacturerIds.getAlias(companyId) | category);
+        if (!mManufacturerIdList.contains(companyId)) mManufacturerIdList.add(companyId);
+    }
+
+    public List<UUID> getServiceUuids() {
+        return mServiceUuidList;
+    }
+
+    public List<Integer> getManufacturerIds() {
+        return mManufacturerIdList;
+    }
+
+    /**
+     * @return The categories of the targets advertised by the record, 0 if there is none.
+     */
+    public int match(byte[] scanRecord) {
+        final AdCursor cursor = mCursor.reset(scanRecord);
+        int categories = 0;
+        mNameLength = 0;
+        while (cursor.next()) {
+            switch (cursor.getType()) {
+                case AdRecord.TYPE_NAME:
+                case AdRecord.TYPE_NAME_SHORT:
+                    // Prefer the complete name over the shortened one.
+                    if (mNameLength == 0 || cursor.getType() == AdRecord.TYPE_NAME) {
+                        mNameOffset = cursor.getDataOffset();
+                        mNameLength = cursor.getDataLength();
+                    }
+                    break;
+                case AdRecord.TYPE_UUID16:
+                case AdRecord.TYPE_UUID16_INC:
+                    for (int i = cursor.getUuidCount() - 1; i >= 0; i--) {
+                        categories |= mServiceUuids.getAlias(cursor.getUuid16(i));
+                    }
+                    break;
+                case AdRecord.TYPE_UUID32:
+                case AdRecord.TYPE_UUID32_INC:
+                    for (int i = cursor.getUuidCount() - 1; i >= 0; i--) {
+                        categories |= mServiceUuids.getAlias(cursor.getUuid32(i));
+                    }
+                    break;
+                case AdRecord.TYPE_UUID128:
+                case AdRecord.TYPE_UUID128_INC:
+                    for (int i = cursor.getUuidCount() - 1; i >= 0; i--) {
+                        categories |= mServiceUuids.get(cursor.getUuid128Msb(i),
+                                cursor.getUuid128Lsb(i));
+                    }
+                    break;
+                case AdRecord.TYPE_MANUFACTURER_DATA:
+                    final int companyId = cursor.getManufacturerId();
+                    if (companyId >= 0) {
+                        categories |= mManufacturerIds.getAlias(companyId);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return categories;
+    }
+
+    /**
+     * @return Offset in the last matched record of the local name.
+     */
+    public int getNameOffset() {
+        return mNameOffset;
+    }
+
+    /**
+     * @return Length of the local name in the last matched record, 0 if it has none.
+     */
+    public int getNameLength() {
+        return mNameLength;
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Processes scan results on a dedicated background thread.
+ * <p/>
+ * The scan callback only calls {@link #enqueue(BluetoothDevice, int, byte[])}, which stores the
+ * raw (device, rssi, record) tuple in a bounded ring buffer and returns.  Prefiltering, name
+ * parsing and the registry update happen on the processing thread, off the Bluetooth binder
+ * thread and the UI thread.  When the queue is full the new result is dropped and counted.
+ */
+public class ScanProcessor {
+    private final ScanPrefilter mPrefilter;
+    private final ScanDeviceRegistry mRegistry;
+    private final Listener mListener;
+
+    // Ring buffer, guarded by "this".
+    private final BluetoothDevice[] mDevices;
+    private final int[] mRssi;
+    private final byte[][] mRecords;
+    private final long[] mTimes;
+    private int mHead;
+    private int mSize;
+    private boolean mDrainScheduled;
+    // Non-zero while a batch is being queued, the drain is posted once at the end.
+    private int mBatchDepth;
+
+    // Statistics, guarded by "this".
+    private int mMaxDepth;
+    private long mEnqueuedCount;
+    private long mDroppedCount;
+    private long mProcessedCount;
+    private long mMatchedCount;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param capacity Maximum number of results waiting to be processed.
+     */
+    public ScanProcessor(ScanPrefilter prefilter, ScanDeviceRegistry registry, Listener listener,
+                         int capacity) {
+        mPrefilter = prefilter;
+        mRegistry = registry;
+        mListener = listener;
+        mDevices = new BluetoothDevice[capacity];
+        mRssi = new int[capacity];
+        mRecords = new byte[capacity][];
+        mTimes = new long[capacity];
+    }
+
+    public synchronized void start() {
+        if (mThread != null) return;
+        mThread = new HandlerThread("ScanProcessor", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Stops the processing thread and drops the pending results.
+     */
+    public synchronized void stop() {
+        if (mThread == null) return;
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+        for (int i = 0; i < mDevices.length; i++) {
+            mDevices[i] = null;
+            mRecords[i] = null;
+        }
+        mHead = 0;
+        mSize = 0;
+        mDrainScheduled = false;
+        mBatchDepth = 0;
+    }
+
+    /**
+     * Queues a scan result, called from the scan callback.
+     *
+     * @return false if the result was dropped because the queue is full or stopped.
+     */
+    public boolean enqueue(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (mHandler == null) return false;
+            mEnqueuedCount++;
+            if (mSize == mDevices.length) {
+                mDroppedCount++;
+                return false;
+            }
+            final int tail = (mHead + mSize) % mDevices.length;
+            mDevices[tail] = device;
+            mRssi[tail] = rssi;
+            mRecords[tail] = scanRecord;
+            mTimes[tail] = now;
+            mSize++;
+            if (mSize > mMaxDepth) mMaxDepth = mSize;
+            scheduleDrain();
+        }
+        return true;
+    }
+
+    /**
+     * Starts queueing a batch of results, such as the ones delivered together by a scan with a
+     * report delay.  The processing thread is woken once, by {@link #endBatch()}, and drains the
+     * whole batch in one pass.
+     */
+    public synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    public synchronized void endBatch() {
+        if (mBatchDepth == 0) return;
+        mBatchDepth--;
+        scheduleDrain();
+    }
+
+    // Called with the lock held.
+    private void scheduleDrain() {
+        if (!mDrainScheduled && mBatchDepth == 0 && mSize > 0 && mHandler != null) {
+            mDrainScheduled = true;
+            mHandler.post(mDrain);
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return mSize;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getEnqueuedCount() {
+        return mEnqueuedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getProcessedCount() {
+        return mProcessedCount;
+    }
+
+    public synchronized long getMatchedCount() {
+        return mMatchedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "enqueued " + mEnqueuedCount + ", processed " + mProcessedCount
+                + ", matched " + mMatchedCount + ", dropped " + mDroppedCount
+                + ", depth " + mSize + " (max " + mMaxDepth + ")";
+    }
+
+    // Runs on the processing thread.
+    private void drain() {
+        boolean updated = false;
+        while (true) {
+            final BluetoothDevice device;
+            final int rssi;
+            final byte[] record;
+            final long time;
+            synchronized (this) {
+                if (mSize == 0) {
+                    mDrainScheduled = false;
+                    break;
+                }
+                device = mDevices[mHead];
+                rssi = mRssi[mHead];
+                record = mRecords[mHead];
+                time = mTimes[mHead];
+                mDevices[mHead] = null;
+                mRecords[mHead] = null;
+                mHead = (mHead + 1) % mDevices.length;
+                mSize--;
+                mProcessedCount++;
+            }
+            if (process(device, rssi, record, time)) {
+                updated = true;
+            }
+        }
+        if (updated) {
+            mListener.onDevicesUpdated();
+        }
+    }
+
+    private boolean process(BluetoothDevice device, int rssi, byte[] record, long time) {
+        final int categories = mPrefilter.match(record);
+        if (categories == 0) return false;
+        final long address = ScanDeviceRegistry.addressToLong(device.getAddress());
+        String name = null;
+        if (mPrefilter.getNameLength() > 0 && !mRegistry.hasName(address)) {
+            name = new String(record, mPrefilter.getNameOffset(), mPrefilter.getNameLength());
+        }
+        mRegistry.update(address, device, rssi, time, name, categories);
+        synchronized (this) {
+            mMatchedCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Notified on the processing thread after a batch of results updated the registry.
+     */
+    public interface Listener {
+        void onDevicesUpdated();
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Duty-cycles a {@link ScanBackend} according to the discovery progress.
+ * <p/>
+ * The scan runs in windows of {@link #SCAN_WINDOW}.  While windows find new devices the scan is
+ * continuous; after a window without new devices an idle gap is inserted, doubling up to
+ * {@link #MAX_IDLE_GAP}, and the scan stops after {@link #MAX_IDLE_WINDOWS} such windows in a
+ * row.  It also stops as soon as all the expected devices, e.g. the devices used before,
+ * have been seen again.
+ * <p/>
+ * Runs on the thread of the given handler.
+ */
+public class ScanScheduler {
+    private final static String TAG = ScanScheduler.class.getSimpleName();
+    private static final long SCAN_WINDOW = 2000;
+    private static final long MIN_IDLE_GAP = 500;
+    private static final long MAX_IDLE_GAP = 8000;
+    private static final int MAX_IDLE_WINDOWS = 4;
+
+    private final ScanBackend mBackend;
+    private final ScanDeviceRegistry mRegistry;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    // Addresses to find before stopping early.
+    private long[] mExpected = new long[8];
+    private int mExpectedCount;
+
+    private boolean mActive;
+    private boolean mScanning;
+    private long mStartTime;
+    private long mWindowStart;
+    private int mDiscoveredAtWindowStart;
+    private long mIdleGap;
+    private int mIdleWindows;
+    // Radio time of the current session.
+    private long mScanTime;
+
+    private final Runnable mEndWindow = new Runnable() {
+        @Override
+        public void run() {
+            endWindow();
+        }
+    };
+    private final Runnable mStartWindow = new Runnable() {
+        @Override
+        public void run() {
+            startWindow();
+        }
+    };
+
+    public ScanScheduler(ScanBackend backend, ScanDeviceRegistry registry, Handler handler,
+                         Listener listener) {
+        mBackend = backend;
+        mRegistry = registry;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Adds a device whose presence ends the scan early once it is seen.
+     */
+    public void expect(long address) {
+        if (address < 0) return;
+        for (int i = 0; i < mExpectedCount; i++) {
+            if (mExpected[i] == address) return;
+        }
+        if (mExpectedCount == mExpected.length) {
+            final long[] expected = new long[mExpectedCount * 2];
+            System.arraycopy(mExpected, 0, expected, 0, mExpectedCount);
+            mExpected = expected;
+        }
+        mExpected[mExpectedCount++] = address;
+    }
+
+    public void clearExpected() {
+        mExpectedCount = 0;
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    public void start() {
+        if (mActive) return;
+        mActive = true;
+        mStartTime = SystemClock.elapsedRealtime();
+        mScanTime = 0;
+        mIdleGap = 0;
+        mIdleWindows = 0;
+        startWindow();
+    }
+
+    public void stop() {
+        if (!mActive) return;
+        mHandler.removeCallbacks(mEndWindow);
+        mHandler.removeCallbacks(mStartWindow);
+        stopWindow();
+        mActive = false;
+        Log.d(TAG, "Scanned " + mScanTime + " ms in "
+                + (SystemClock.elapsedRealtime() - mStartTime) + " ms");
+        mListener.onScanStopped();
+    }
+
+    /**
+     * Called after the registry was updated, to stop as soon as the expected devices are seen.
+     */
+    public void onDevicesUpdated() {
+        if (mActive && allExpectedSeen()) {
+            stop();
+        }
+    }
+
+    private void startWindow() {
+        if (!mScanning) {
+            mScanning = mBackend.start();
+            if (!mScanning) {
+                stop();
+                return;
+            }
+            mWindowStart = SystemClock.elapsedRealtime();
+            mListener.onScanWindowChanged(true);
+        }
+        mDiscoveredAtWindowStart = mRegistry.getDiscoveredCount();
+        mHandler.postDelayed(mEndWindow, SCAN_WINDOW);
+    }
+
+    private void stopWindow() {
+        if (!mScanning) return;
+        mBackend.stop();
+        mScanning = false;
+        mScanTime += SystemClock.elapsedRealtime() - mWindowStart;
+        mListener.onScanWindowChanged(false);
+    }
+
+    private void endWindow() {
+        if (allExpectedSeen()) {
+            stop();
+            return;
+        }
+        if (mRegistry.getDiscoveredCount() > mDiscoveredAtWindowStart) {
+            // Still finding devices, keep scanning continuously.
+            mIdleGap = 0;
+            mIdleWindows = 0;
+            startWindow();
+            return;
+        }
+        if (++mIdleWindows >= MAX_IDLE_WINDOWS) {
+            stop();
+            return;
+        }
+        mIdleGap = Math.min(MAX_IDLE_GAP, Math.max(MIN_IDLE_GAP, mIdleGap * 2));
+        stopWindow();
+        mHandler.postDelayed(mStartWindow, mIdleGap);
+    }
+
+    private boolean allExpectedSeen() {
+        if (mExpectedCount == 0) return false;
+        for (int i = 0; i < mExpectedCount; i++) {
+            if (mRegistry.getLastSeenOf(mExpected[i]) < mStartTime) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Notified on the handler thread.
+     */
+    public interface Listener {
+        /**
+         * The radio was switched on or off between two windows.
+         */
+        void onScanWindowChanged(boolean scanning);
+
+        /**
+         * The schedule ended, by {@link #stop()} or because discovery was complete.
+         */
+        void onScanStopped();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decodes the raw value of the sensor characteristics (CSC, Cycling Power, Heart Rate)
+ * straight from the {@code byte[]} of a notification into reusable sample holders.
+ * <p/>
+ * Nothing is allocated per notification: every method reads little-endian fields by offset
+ * and writes primitive results into the holder passed by the caller.  The methods return
+ * false if the value is too short for the fields announced by its flags, in which case the
+ * holder content must be ignored.
+ */
+public final class SensorDecoder {
+
+    // CSC Measurement flags.
+    public static final int CSC_WHEEL_REV_PRESENT = 0x01;
+    public static final int CSC_CRANK_REV_PRESENT = 0x02;
+
+    // Cycling Power Measurement flags.
+    public static final int CPS_PEDAL_POWER_BALANCE_PRESENT = 0x0001;
+    public static final int CPS_PEDAL_POWER_BALANCE_LEFT = 0x0002;
+    public static final int CPS_ACCUMULATED_TORQUE_PRESENT = 0x0004;
+    public static final int CPS_ACCUMULATED_TORQUE_CRANK = 0x0008;
+    public static final int CPS_WHEEL_REV_PRESENT = 0x0010;
+    public static final int CPS_CRANK_REV_PRESENT = 0x0020;
+    public static final int CPS_EXTREME_FORCE_PRESENT = 0x0040;
+    public static final int CPS_EXTREME_TORQUE_PRESENT = 0x0080;
+    public static final int CPS_EXTREME_ANGLES_PRESENT = 0x0100;
+    public static final int CPS_TOP_DEAD_SPOT_PRESENT = 0x0200;
+    public static final int CPS_BOTTOM_DEAD_SPOT_PRESENT = 0x0400;
+    public static final int CPS_ACCUMULATED_ENERGY_PRESENT = 0x0800;
+    public static final int CPS_OFFSET_COMPENSATION = 0x1000;
+
+    // Heart Rate Measurement flags.
+    public static final int HRM_VALUE_FORMAT_UINT16 = 0x01;
+    public static final int HRM_CONTACT_DETECTED = 0x02;
+    public static final int HRM_CONTACT_SUPPORTED = 0x04;
+    public static final int HRM_ENERGY_EXPENDED_PRESENT = 0x08;
+    public static final int HRM_RR_INTERVAL_PRESENT = 0x10;
+
+    private SensorDecoder() {
+    }
+
+    public static int uint8(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    public static int sint8(byte[] data, int offset) {
+        return data[offset];
+    }
+
+    public static int uint16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    public static int sint16(byte[] data, int offset) {
+        return (short) uint16(data, offset);
+    }
+
+    public static long uint32(byte[] data, int offset) {
+        return ((long) uint16(data, offset)) | (((long) uint16(data, offset + 2)) << 16);
+    }
+
+    /**
+     * Decodes a CSC Measurement value.
+     *
+     * @param data The raw characteristic value.
+     * @param out  Holder receiving the decoded fields.
+     * @return true if the value was complete.
+     */
+    public static boolean decodeCsc(byte[] data, CscSample out) {
+        if (data == null || data.length < 1) return false;
+        final int flags = uint8(data, 0);
+        int offset = 1;
+
+        out.mFlags = flags;
+        out.mWheelPresent = (flags & CSC_WHEEL_REV_PRESENT) != 0;
+        if (out.mWheelPresent) {
+            if (data.length < offset + 6) return false;
+            out.mCumulativeWheelRevs = uint32(data, offset);
+            out.mLastWheelEventTime = uint16(data, offset + 4);
+            offset += 6;
+        }
+        out.mCrankPresent = (flags & CSC_CRANK_REV_PRESENT) != 0;
+        if (out.mCrankPresent) {
+            if (data.length < offset + 4) return false;
+            out.mCumulativeCrankRevs = uint16(data, offset);
+            out.mLastCrankEventTime = uint16(data, offset + 2);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a Cycling Power Measurement value.  The optional fields are walked in a single
+     * pass, in the order defined by the profile, so every field announced by the flags is
+     * read exactly once at its real offset.
+     *
+     * @param data The raw characteristic value.
+     * @param out  Holder receiving the decoded fields.
+     * @return true if the value was complete.
+     */
+    public static boolean decodeCyclingPower(byte[] data, PowerSample out) {
+        if (data == null || data.length < 4) return false;
+        final int length = data.length;
+        final int flags = uint16(data, 0);
+        int offset = 4;
+
+        out.mFlags = flags;
+        out.mInstantaneousPower = sint16(data, 2);
+
+        out.mPedalPowerBalancePresent = (flags & CPS_PEDAL_POWER_BALANCE_PRESENT) != 0;
+        out.mPedalPowerBalanceLeft = (flags & CPS_PEDAL_POWER_BALANCE_LEFT) != 0;
+        if (out.mPedalPowerBalancePresent) {
+            if (length < offset + 1) return false;
+            out.mPedalPowerBalance = uint8(data, offset);
+            offset += 1;
+        }
+
+        out.mAccumulatedTorquePresent = (flags & CPS_ACCUMULATED_TORQUE_PRESENT) != 0;
+        out.mAccumulatedTorqueCrankBased = (flags & CPS_ACCUMULATED_TORQUE_CRANK) != 0;
+        if (out.mAccumulatedTorquePresent) {
+            if (length < offset + 2) return false;
+            out.mAccumulatedTorque = uint16(data, offset);
+            offset += 2;
+        }
+
+        out.mWheelPresent = (flags & CPS_WHEEL_REV_PRESENT) != 0;
+        if (out.mWheelPresent) {
+            if (length < offset + 6) return false;
+            out.mCumulativeWheelRevs = uint32(data, offset);
+            out.mLastWheelEventTime = uint16(data, offset + 4);
+            offset += 6;
+        }
+
+        out.mCrankPresent = (flags & CPS_CRANK_REV_PRESENT) != 0;
+        if (out.mCrankPresent) {
+            if (length < offset + 4) return false;
+            out.mCumulativeCrankRevs = uint16(data, offset);
+            out.mLastCrankEventTime = uint16(data, offset + 2);
+            offset += 4;
+        }
+
+        out.mExtremeForcePresent = (flags & CPS_EXTREME_FORCE_PRESENT) != 0;
+        if (out.mExtremeForcePresent) {
+            if (length < offset + 4) return false;
+            out.mMaxForce = sint16(data, offset);
+            out.mMinForce = sint16(data, offset + 2);
+            offset += 4;
+        }
+
+        out.mExtremeTorquePresent = (flags & CPS_EXTREME_TORQUE_PRESENT) != 0;
+        if (out.mExtremeTorquePresent) {
+            if (length < offset + 4) return false;
+            out.mMaxTorque = sint16(data, offset);
+            out.mMinTorque = sint16(data, offset + 2);
+            offset += 4;
+        }
+
+        out.mExtremeAnglesPresent = (flags & CPS_EXTREME_ANGLES_PRESENT) != 0;
+        if (out.mExtremeAnglesPresent) {
+            if (length < offset + 3) return false;
+            // Two uint12 packed in three bytes: maximum angle first, minimum angle after.
+            final int packed = uint16(data, offset) | (uint8(data, offset + 2) << 16);
+            out.mMaxAngle = packed & 0x0FFF;
+            out.mMinAngle = (packed >> 12) & 0x0FFF;
+            offset += 3;
+        }
+
+        out.mTopDeadSpotPresent = (flags & CPS_TOP_DEAD_SPOT_PRESENT) != 0;
+        if (out.mTopDeadSpotPresent) {
+            if (length < offset + 2) return false;
+            out.mTopDeadSpotAngle = uint16(data, offset);
+            offset += 2;
+        }
+
+        out.mBottomDeadSpotPresent = (flags & CPS_BOTTOM_DEAD_SPOT_PRESENT) != 0;
+        if (out.mBottomDeadSpotPresent) {
+            if (length < offset + 2) return false;
+            out.mBottomDeadSpotAngle = uint16(data, offset);
+            offset += 2;
+        }
+
+        out.mAccumulatedEnergyPresent = (flags & CPS_ACCUMULATED_ENERGY_PRESENT) != 0;
+        if (out.mAccumulatedEnergyPresent) {
+            if (length < offset + 2) return false;
+            out.mAccumulatedEnergy = uint16(data, offset);
+        }
+
+        out.mOffsetCompensation = (flags & CPS_OFFSET_COMPENSATION) != 0;
+        return true;
+    }
+
+    /**
+     * Decodes a Heart Rate Measurement value.  The value format is taken from the flags byte
+     * of the value itself.  All the RR intervals of the notification are extracted into the
+     * reusable buffer of the holder, which only grows if a notification carries more of them
+     * than it has ever seen.
+     *
+     * @param data The raw characteristic value.
+     * @param out  Holder receiving the decoded fields.
+     * @return true if the value was complete.
+     */
+    public static boolean decodeHeartRate(byte[] data, HeartRateSample out) {
+        if (data == null || data.length < 2) return false;
+        final int length = data.length;
+        final int flags = uint8(data, 0);
+        int offset = 1;
+
+        out.mFlags = flags;
+        if ((flags & HRM_VALUE_FORMAT_UINT16) != 0) {
+            if (length < offset + 2) return false;
+            out.mHeartRate = uint16(data, offset);
+            offset += 2;
+        } else {
+            out.mHeartRate = uint8(data, offset);
+            offset += 1;
+        }
+        out.mContactSupported = (flags & HRM_CONTACT_SUPPORTED) != 0;
+        out.mContactDetected = (flags & HRM_CONTACT_DETECTED) != 0;
+
+        out.mEnergyExpendedPresent = (flags & HRM_ENERGY_EXPENDED_PRESENT) != 0;
+        if (out.mEnergyExpendedPresent) {
+            if (length < offset + 2) return false;
+            out.mEnergyExpended = uint16(data, offset);
+            offset += 2;
+        }
+
+        out.mRrCount = 0;
+        if ((flags & HRM_RR_INTERVAL_PRESENT) != 0) {
+            final int count = (length - offset) / 2;
+            out.ensureRrCapacity(count);
+            final int[] rr = out.mRrIntervals;
+            for (int i = 0; i < count; i++, offset += 2) {
+                rr[i] = uint16(data, offset);
+            }
+            out.mRrCount = count;
+        }
+        return true;
+    }
+}
@@ -105,6 +105,9 @@ public class SettingsActivity extends Activity {
         String Circ;
         Circ = mWheelCircumference.getText().toString();
         BluetoothLeService.WheelCircumference = Integer.parseInt(Circ);
+        final KnownDeviceStore knownDevices = new KnownDeviceStore(this);
+        knownDevices.setWheelCircumference(knownDevices.getLastUsedAddress(),
+                BluetoothLeService.WheelCircumference);
 
         InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
         imm.hideSoftInputFromWindow(view.getWindowToken(), 0);
@@ -115,6 +118,9 @@ public class SettingsActivity extends Activity {
         String Value;
         Value = mTextMaxPowerSlider.getText().toString();
         DeviceControlActivity.MaxPowerSlider = Integer.parseInt(Value);
+        final KnownDeviceStore knownDevices = new KnownDeviceStore(this);
+        knownDevices.setMaxPowerSlider(knownDevices.getLastUsedAddress(),
+                DeviceControlActivity.MaxPowerSlider);
         InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
         imm.hideSoftInputFromWindow(view.getWindowToken(), 0);
         finish();
@@ -0,0 +1,126 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Speed and cadence state of one sensor connection.  Keeps a {@link RevolutionCounter} for
+ * each revolution source: CSC wheel and crank (1/1024 s) and Cycling Power wheel (1/2048 s)
+ * and crank (1/1024 s).
+ * <p/>
+ * The samples are fed on the Bluetooth binder thread while {@link #checkStale} runs on a
+ * timer, so the methods are synchronized.
+ */
+public class SpeedCadenceCalculator {
+    // Returned by checkStale.
+    public static final int STALE_SPEED = 0x01;
+    public static final int STALE_CADENCE = 0x02;
+    // A wheel doing more than 50 rev/s (above 350 km/h) or a crank above 250 rpm is a reset.
+    private static final double MAX_WHEEL_REVS_PER_SECOND = 50;
+    private static final double MAX_CRANK_REVS_PER_SECOND = 250.0 / 60;
+    private static final long STALE_MILLIS = 3000;
+
+    private final RevolutionCounter mCscWheel = new RevolutionCounter(
+            RevolutionCounter.UINT32_MASK, 1024, MAX_WHEEL_REVS_PER_SECOND, STALE_MILLIS);
+    private final RevolutionCounter mCscCrank = new RevolutionCounter(
+            RevolutionCounter.UINT16_MASK, 1024, MAX_CRANK_REVS_PER_SECOND, STALE_MILLIS);
+    private final RevolutionCounter mPowerWheel = new RevolutionCounter(
+            RevolutionCounter.UINT32_MASK, 2048, MAX_WHEEL_REVS_PER_SECOND, STALE_MILLIS);
+    private final RevolutionCounter mPowerCrank = new RevolutionCounter(
+            RevolutionCounter.UINT16_MASK, 1024, MAX_CRANK_REVS_PER_SECOND, STALE_MILLIS);
+
+    private double mCscSpeed;
+    private int mCscCadence;
+    private double mPowerSpeed;
+    private int mPowerCadence;
+
+    /**
+     * Updates speed and cadence from a CSC Measurement.
+     *
+     * @param wheelCircumference Wheel circumference in mm.
+     */
+    public synchronized void onCscSample(CscSample sample, int wheelCircumference,
+                                         long nowMillis) {
+        if (sample.mWheelPresent) {
+            mCscWheel.update(sample.mCumulativeWheelRevs, sample.mLastWheelEventTime, nowMillis);
+            mCscSpeed = toKmh(mCscWheel.getRevolutionsPerSecond(), wheelCircumference);
+        }
+        if (sample.mCrankPresent) {
+            mCscCrank.update(sample.mCumulativeCrankRevs, sample.mLastCrankEventTime, nowMillis);
+            mCscCadence = (int) Math.round(mCscCrank.getRevolutionsPerMinute());
+        }
+    }
+
+    /**
+     * Updates speed and cadence from the revolution data of a Cycling Power Measurement.
+     *
+     * @param wheelCircumference Wheel circumference in mm.
+     */
+    public synchronized void onPowerSample(PowerSample sample, int wheelCircumference,
+                                           long nowMillis) {
+        if (sample.mWheelPresent) {
+            mPowerWheel.update(sample.mCumulativeWheelRevs, sample.mLastWheelEventTime, nowMillis);
+            mPowerSpeed = toKmh(mPowerWheel.getRevolutionsPerSecond(), wheelCircumference);
+        }
+        if (sample.mCrankPresent) {
+            mPowerCrank.update(sample.mCumulativeCrankRevs, sample.mLastCrankEventTime, nowMillis);
+            mPowerCadence = (int) Math.round(mPowerCrank.getRevolutionsPerMinute());
+        }
+    }
+
+    public synchronized double getCscSpeed() {
+        return mCscSpeed;
+    }
+
+    public synchronized int getCscCadence() {
+        return mCscCadence;
+    }
+
+    public synchronized double getPowerSpeed() {
+        return mPowerSpeed;
+    }
+
+    public synchronized int getPowerCadence() {
+        return mPowerCadence;
+    }
+
+    /**
+     * Drops to zero the rates of the sensors that stopped sending new revolution events, since
+     * a sensor that stops notifying altogether never feeds its counters again.
+     *
+     * @return {@link #STALE_SPEED} and/or {@link #STALE_CADENCE} if the speed or the cadence of
+     * both sources just dropped to zero, else 0.
+     */
+    public synchronized int checkStale(long nowMillis) {
+        final boolean hadSpeed = mCscSpeed > 0 || mPowerSpeed > 0;
+        final boolean hadCadence = mCscCadence > 0 || mPowerCadence > 0;
+        mCscWheel.checkStale(nowMillis);
+        mCscCrank.checkStale(nowMillis);
+        mPowerWheel.checkStale(nowMillis);
+        mPowerCrank.checkStale(nowMillis);
+        if (mCscWheel.getRevolutionsPerSecond() == 0) mCscSpeed = 0;
+        if (mCscCrank.getRevolutionsPerSecond() == 0) mCscCadence = 0;
+        if (mPowerWheel.getRevolutionsPerSecond() == 0) mPowerSpeed = 0;
+        if (mPowerCrank.getRevolutionsPerSecond() == 0) mPowerCadence = 0;
+        int stale = 0;
+        if (hadSpeed && mCscSpeed == 0 && mPowerSpeed == 0) stale |= STALE_SPEED;
+        if (hadCadence && mCscCadence == 0 && mPowerCadence == 0) stale |= STALE_CADENCE;
+        return stale;
+    }
+
+    /**
+     * Forgets all the baselines, e.g. after a reconnection.
+     */
+    public synchronized void reset() {
+        mCscWheel.reset();
+        mCscCrank.reset();
+        mPowerWheel.reset();
+        mPowerCrank.reset();
+        mCscSpeed = 0;
+        mCscCadence = 0;
+        mPowerSpeed = 0;
+        mPowerCadence = 0;
+    }
+
+    private static double toKmh(double revolutionsPerSecond, int wheelCircumference) {
+        // mm/s to km/h.
+        return revolutionsPerSecond * wheelCircumference * 3600 / 1000000;
+    }
+}
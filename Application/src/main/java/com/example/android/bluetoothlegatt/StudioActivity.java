@@ -0,0 +1,242 @@
+package com.example.android.bluetoothlegatt;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+import android.view.MenuItem;
+import android.view.ViewGroup;
+import android.widget.SeekBar;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+
+/**
+ * Studio mode: one device showing and driving the trainers of a whole class.
+ * <p/>
+ * Every trainer found by the last scan gets its own {@link GattSession} of the service pool
+ * and its own {@link StudioRider} display slot.  The sessions connect one at a time through
+ * the {@link ConnectGate} of the pool, since the stack handles a single pending direct
+ * connection.  A trainer that drops is reconnected by the {@link ReconnectEngine} of its
+ * session, the other sessions are not touched.
+ * <p/>
+ * The group target is sent to all the trainers whose brake is known through a
+ * {@link GroupCommandScheduler}, which also reports how far apart the trainers apply it.
+ */
+public class StudioActivity extends Activity {
+    private final static String TAG = StudioActivity.class.getSimpleName();
+    private static final int MAX_RIDERS = 16;
+    // Time given to the trainers to acknowledge a group target before showing the skew.
+    private static final long GROUP_STATS_DELAY = 2500;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<StudioRider> mRiders = new ArrayList<StudioRider>();
+    private ViewGroup mGrid;
+    private TextView mStatus;
+    private TextView mGroupTargetValue;
+    private TextView mGroupStats;
+    private final GroupCommandScheduler mGroupScheduler = new GroupCommandScheduler();
+    private BluetoothLeService mBluetoothLeService;
+
+    // Called on the Bluetooth binder threads, the events are handled on the UI thread.
+    private final BluetoothLeService.SessionListener mSessionListener =
+            new BluetoothLeService.SessionListener() {
+                @Override
+                public void onSessionStateChanged(final GattSession session, int status) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            handleStateChanged(session);
+                        }
+                    });
+                }
+
+                @Override
+                public void onSessionServicesDiscovered(final GattSession session) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            final StudioRider rider = findRider(session);
+                            if (rider == null) return;
+                            rider.onServicesDiscovered();
+                            if (rider.hasBrake()) {
+                                mGroupScheduler.addMember(session,
+                                        rider.getBrakeCharacteristic());
+                            }
+                        }
+                    });
+                }
+            };
+
+    private final Runnable mShowGroupStats = new Runnable() {
+        @Override
+        public void run() {
+            mGroupStats.setText(mGroupScheduler.toString());
+        }
+    };
+
+    // Code to manage Service lifecycle.
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                Log.e(TAG, "Unable to initialize Bluetooth");
+                finish();
+                return;
+            }
+            mBluetoothLeService.registerSessionListener(mSessionListener);
+            addRiders();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_studio);
+        mGrid = (ViewGroup) findViewById(R.id.studio_grid);
+        mStatus = (TextView) findViewById(R.id.studio_status);
+        mGroupTargetValue = (TextView) findViewById(R.id.studio_group_target_value);
+        mGroupStats = (TextView) findViewById(R.id.studio_group_stats);
+        final SeekBar groupTarget = (SeekBar) findViewById(R.id.studio_group_target);
+        groupTarget.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                mGroupTargetValue.setText(progress + " W");
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                // The same power target for every rider, applied on the next tick.
+                mGroupScheduler.submit(BrakeCommandChannel.MODE_POWER, seekBar.getProgress());
+                mHandler.removeCallbacks(mShowGroupStats);
+                mHandler.postDelayed(mShowGroupStats, GROUP_STATS_DELAY);
+            }
+        });
+        getActionBar().setTitle(R.string.title_studio);
+        getActionBar().setDisplayHomeAsUpEnabled(true);
+
+        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        for (StudioRider rider : mRiders) {
+            rider.start();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        for (StudioRider rider : mRiders) {
+            rider.stop();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacksAndMessages(null);
+        Log.i(TAG, "Group targets: " + mGroupScheduler);
+        mGroupScheduler.clear();
+        for (StudioRider rider : mRiders) {
+            rider.release();
+            if (mBluetoothLeService != null) {
+                mBluetoothLeService.closeSession(rider.getAddress());
+            }
+        }
+        mRiders.clear();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.unregisterSessionListener(mSessionListener);
+        }
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                onBackPressed();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    // Adds a rider for each trainer of the last scan.
+    private void addRiders() {
+        final ScanDeviceRegistry registry = ScanDeviceRegistry.getShared();
+        final int count = registry.getCount();
+        for (int i = 0; i < count && mRiders.size() < MAX_RIDERS; i++) {
+            if ((registry.getCategories(i) & ScanPrefilter.CATEGORY_TRAINER) == 0) continue;
+            final BluetoothDevice device = registry.getDevice(i);
+            if (device == null || findRider(device.getAddress()) != null) continue;
+            String name = registry.getName(i);
+            if (name == null || name.length() == 0) {
+                name = getString(R.string.unknown_device);
+            }
+            final StudioRider rider = new StudioRider(device.getAddress(), name, mGrid);
+            rider.start();
+            mRiders.add(rider);
+            // Queued behind the other connection attempts of the pool.
+            rider.attach(mBluetoothLeService.connectSession(device.getAddress()));
+        }
+        updateStatus();
+    }
+
+    private void handleStateChanged(GattSession session) {
+        final StudioRider rider = findRider(session);
+        if (rider == null) return;
+        rider.updateState();
+        if (session.getState() == GattSession.STATE_DISCONNECTED) {
+            mGroupScheduler.removeMember(session);
+        }
+        updateStatus();
+    }
+
+    private void updateStatus() {
+        int connected = 0;
+        for (StudioRider rider : mRiders) {
+            if (rider.getSession() != null && rider.getSession().isConnected()) connected++;
+        }
+        if (mRiders.isEmpty()) {
+            mStatus.setText(R.string.studio_no_trainers);
+        } else {
+            mStatus.setText(getString(R.string.studio_riders_connected, connected,
+                    mRiders.size()));
+        }
+    }
+
+    private StudioRider findRider(GattSession session) {
+        for (StudioRider rider : mRiders) {
+            if (rider.getSession() == session) return rider;
+        }
+        return null;
+    }
+
+    private StudioRider findRider(String address) {
+        for (StudioRider rider : mRiders) {
+            if (rider.getAddress().equals(address)) return rider;
+        }
+        return null;
+    }
+}
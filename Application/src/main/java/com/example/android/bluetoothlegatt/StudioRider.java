@@ -0,0 +1,181 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.UUID;
+
+/**
+ * One rider of the {@link StudioActivity}: the session of the rider's trainer and the display
+ * slot showing its metrics.
+ * <p/>
+ * The metrics come from the bus of the session only and are coalesced per slot, so a trainer
+ * that floods or stalls only affects its own slot.  The session is attached once the
+ * connection is initiated and replaced if the trainer is reconnected with a new one.  Must be
+ * used on the UI thread.
+ */
+public class StudioRider {
+    private final static UUID UUID_ELITE_TRAINER_BRAKE =
+            UUID.fromString(SampleGattAttributes.ELITE_TRAINER_TRAINER_BRAKE);
+    // Each slot is small, a few updates per second are enough.
+    private static final int MAX_UI_UPDATES_PER_SECOND = 10;
+
+    private final String mAddress;
+    private final String mName;
+    private final View mView;
+    private final TextView mNameField;
+    private final TextView mStateField;
+    private final TextView mPowerField;
+    private final TextView mCadenceField;
+    private final TextView mHeartRateField;
+    private final MetricsCoalescer mMetricsCoalescer;
+    private GattSession mSession;
+    private BluetoothGattCharacteristic mBrakeCharacteristic;
+    private Listener mListener;
+
+    private final MetricsCoalescer.Display mMetricsDisplay = new MetricsCoalescer.Display() {
+        @Override
+        public void showPower(int watts) {
+            mPowerField.setText(watts + " W");
+            if (mListener != null) {
+                mListener.onPowerShown(StudioRider.this, watts);
+            }
+        }
+
+        @Override
+        public void showSpeed(double kmh) {
+        }
+
+        @Override
+        public void showCadence(int rpm) {
+            mCadenceField.setText(rpm + " rpm");
+        }
+
+        @Override
+        public void showHeartRate(int bpm) {
+            mHeartRateField.setText(bpm + " bpm");
+        }
+
+        @Override
+        public void showOorFlag(int flag) {
+        }
+    };
+
+    public StudioRider(String address, String name, ViewGroup parent) {
+        mAddress = address;
+        mName = name;
+        mView = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.studio_rider, parent, false);
+        mNameField = (TextView) mView.findViewById(R.id.rider_name);
+        mStateField = (TextView) mView.findViewById(R.id.rider_state);
+        mPowerField = (TextView) mView.findViewById(R.id.rider_power);
+        mCadenceField = (TextView) mView.findViewById(R.id.rider_cadence);
+        mHeartRateField = (TextView) mView.findViewById(R.id.rider_heart_rate);
+        mNameField.setText(name);
+        parent.addView(mView);
+        mMetricsCoalescer = new MetricsCoalescer(mMetricsDisplay, MAX_UI_UPDATES_PER_SECOND);
+        updateState();
+    }
+
+    /**
+     * Shows the metrics of the given session, in place of the previous one if any.
+     */
+    public void attach(GattSession session) {
+        if (session == mSession) return;
+        if (mSession != null) {
+            mSession.unregisterMetricsListener(mMetricsCoalescer);
+        }
+        mSession = session;
+        mBrakeCharacteristic = null;
+        mMetricsCoalescer.invalidate();
+        if (session != null) {
+            session.registerMetricsListener(mMetricsCoalescer);
+        }
+        updateState();
+    }
+
+    public GattSession getSession() {
+        return mSession;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void start() {
+        mMetricsCoalescer.start();
+    }
+
+    public void stop() {
+        mMetricsCoalescer.stop();
+    }
+
+    /**
+     * Stops the updates and removes the display slot.  The session is left to the caller.
+     */
+    public void release() {
+        mMetricsCoalescer.stop();
+        attach(null);
+        final ViewGroup parent = (ViewGroup) mView.getParent();
+        if (parent != null) parent.removeView(mView);
+    }
+
+    public void updateState() {
+        final int state = mSession != null ? mSession.getState()
+                : GattSession.STATE_DISCONNECTED;
+        if (state == GattSession.STATE_CONNECTED) {
+            mStateField.setText(R.string.connected);
+        } else if (state == GattSession.STATE_CONNECTING) {
+            mStateField.setText(R.string.connecting);
+        } else {
+            mStateField.setText(mSession != null && mSession.isReconnecting()
+                    ? R.string.reconnecting : R.string.disconnected);
+            mBrakeCharacteristic = null;
+            mMetricsCoalescer.invalidate();
+        }
+    }
+
+    /**
+     * Enables the sensor notifications and looks up the brake, once the services of the
+     * trainer are discovered.
+     */
+    public void onServicesDiscovered() {
+        if (mSession == null) return;
+        mBrakeCharacteristic = mSession.findCharacteristic(UUID_ELITE_TRAINER_BRAKE);
+        mSession.enableKnownNotifications();
+    }
+
+    public boolean hasBrake() {
+        return mBrakeCharacteristic != null;
+    }
+
+    public BluetoothGattCharacteristic getBrakeCharacteristic() {
+        return mBrakeCharacteristic;
+    }
+
+    /**
+     * Sends a brake target to the trainer of the rider, see {@link BrakeCommandChannel#encode}.
+     */
+    public void setTarget(int mode, int value) {
+        if (mBrakeCharacteristic == null) return;
+        mSession.writeBrakeTarget(mBrakeCharacteristic, mode, value);
+    }
+
+    /**
+     * Notified on the UI thread.
+     */
+    public interface Listener {
+        void onPowerShown(StudioRider rider, int watts);
+    }
+}
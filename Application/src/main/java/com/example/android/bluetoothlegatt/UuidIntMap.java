@@ -0,0 +1,169 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Open-addressing map from a UUID to a non-zero int, with no allocation on lookup.
+ * <p/>
+ * UUIDs derived from the Bluetooth SIG base UUID {@code 0000xxxx-0000-1000-8000-00805f9b34fb}
+ * are stored by their 16/32-bit alias in a table of ints; any other (vendor) UUID is stored by
+ * its two 64-bit halves.  A lookup is a hash of one or two primitives and a short probe, so
+ * its cost does not depend on the number of entries.
+ */
+public class UuidIntMap {
+    public static final long SIG_BASE_LSB = 0x800000805F9B34FBL;
+    private static final long SIG_BASE_MSB_LOW = 0x0000000000001000L;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] mAliasKeys = new int[INITIAL_CAPACITY];
+    private int[] mAliasValues = new int[INITIAL_CAPACITY];
+    private int mAliasCount;
+
+    private long[] mMsbKeys = new long[INITIAL_CAPACITY];
+    private long[] mLsbKeys = new long[INITIAL_CAPACITY];
+    private int[] mVendorValues = new int[INITIAL_CAPACITY];
+    private int mVendorCount;
+
+    public static boolean isSigBased(long msb, long lsb) {
+        return lsb == SIG_BASE_LSB && (msb & 0xFFFFFFFFL) == SIG_BASE_MSB_LOW;
+    }
+
+    /**
+     * Returns the 16 or 32-bit alias of a SIG-based UUID.
+     */
+    public static int sigAlias(long msb) {
+        return (int) (msb >>> 32);
+    }
+
+    /**
+     * Returns the most significant half of the SIG-based UUID with the given alias.
+     */
+    public static long sigMsb(int alias) {
+        return ((alias & 0xFFFFFFFFL) << 32) | SIG_BASE_MSB_LOW;
+    }
+
+    /**
+     * @param value Non-zero value, 0 is reserved for missing keys.
+     */
+    public void put(UUID uuid, int value) {
+        put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), value);
+    }
+
+    public void put(long msb, long lsb, int value) {
+        if (value == 0) {
+            throw new IllegalArgumentException("0 is reserved for missing keys");
+        }
+        if (isSigBased(msb, lsb)) {
+            putAlias(sigAlias(msb), value);
+        } else {
+            putVendor(msb, lsb, value);
+        }
+    }
+
+    /**
+     * @param alias 16 or 32-bit alias of a SIG-based UUID.
+     * @param value Non-zero value, 0 is reserved for missing keys.
+     */
+    public void putAlias(int alias, int value) {
+        if (value == 0) {
+            throw new IllegalArgumentException("0 is reserved for missing keys");
+        }
+        if ((mAliasCount + 1) * 2 > mAliasKeys.length) {
+            growAliases();
+        }
+        final int mask = mAliasKeys.length - 1;
+        int i = hash(alias) & mask;
+        while (mAliasValues[i] != 0 && mAliasKeys[i] != alias) {
+            i = (i + 1) & mask;
+        }
+        if (mAliasValues[i] == 0) mAliasCount++;
+        mAliasKeys[i] = alias;
+        mAliasValues[i] = value;
+    }
+
+    /**
+     * @return The value, or 0 if the UUID is not in the map.
+     */
+    public int get(UUID uuid) {
+        return get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public int get(long msb, long lsb) {
+        if (isSigBased(msb, lsb)) {
+            return getAlias(sigAlias(msb));
+        }
+        final int mask = mMsbKeys.length - 1;
+        int i = hash(msb, lsb) & mask;
+        while (mVendorValues[i] != 0) {
+            if (mMsbKeys[i] == msb && mLsbKeys[i] == lsb) return mVendorValues[i];
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * @return The value of the SIG-based UUID with the given alias, or 0.
+     */
+    public int getAlias(int alias) {
+        final int mask = mAliasKeys.length - 1;
+        int i = hash(alias) & mask;
+        while (mAliasValues[i] != 0) {
+            if (mAliasKeys[i] == alias) return mAliasValues[i];
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    public int size() {
+        return mAliasCount + mVendorCount;
+    }
+
+    private void putVendor(long msb, long lsb, int value) {
+        if ((mVendorCount + 1) * 2 > mMsbKeys.length) {
+            growVendors();
+        }
+        final int mask = mMsbKeys.length - 1;
+        int i = hash(msb, lsb) & mask;
+        while (mVendorValues[i] != 0 && (mMsbKeys[i] != msb || mLsbKeys[i] != lsb)) {
+            i = (i + 1) & mask;
+        }
+        if (mVendorValues[i] == 0) mVendorCount++;
+        mMsbKeys[i] = msb;
+        mLsbKeys[i] = lsb;
+        mVendorValues[i] = value;
+    }
+
+    private void growAliases() {
+        final int[] keys = mAliasKeys;
+        final int[] values = mAliasValues;
+        mAliasKeys = new int[keys.length * 2];
+        mAliasValues = new int[keys.length * 2];
+        mAliasCount = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != 0) putAlias(keys[i], values[i]);
+        }
+    }
+
+    private void growVendors() {
+        final long[] msbs = mMsbKeys;
+        final long[] lsbs = mLsbKeys;
+        final int[] values = mVendorValues;
+        mMsbKeys = new long[msbs.length * 2];
+        mLsbKeys = new long[msbs.length * 2];
+        mVendorValues = new int[msbs.length * 2];
+        mVendorCount = 0;
+        for (int i = 0; i < msbs.length; i++) {
+            if (values[i] != 0) putVendor(msbs[i], lsbs[i], values[i]);
+        }
+    }
+
+    private static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(long msb, long lsb) {
+        final long h = (msb ^ (lsb * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that {@link SensorDecoder} decodes the fields announced by the flags, and allocates
+ * nothing per decoded sample.
+ * <p/>
+ * Each decoder is warmed up, then run {@link #CALLS} times between two readings of the bytes
+ * allocated by the test thread.  The difference is compared to that of two readings with
+ * nothing in between, since reading the counter may itself allocate.
+ */
+public class SensorDecoderAllocationTest {
+    private static final int WARMUP_CALLS = 100000;
+    private static final int CALLS = 1000000;
+
+    // CSC Measurement with wheel and crank revolutions.
+    private static final byte[] CSC = {
+            0x03, 0x10, 0x27, 0x00, 0x00, 0x00, 0x04, 0x64, 0x00, 0x00, 0x02
+    };
+    // Cycling Power Measurement with every optional field.
+    private static final byte[] CYCLING_POWER = {
+            (byte) 0xFF, 0x0F, (byte) 0xC8, 0x00, 0x64, 0x20, 0x03, 0x10, 0x27, 0x00, 0x00,
+            0x00, 0x08, 0x64, 0x00, 0x00, 0x04, (byte) 0xF4, 0x01, 0x0A, 0x00, 0x40, 0x01,
+            0x05, 0x00, 0x5A, 0x40, 0x0B, 0x0A, 0x00, (byte) 0xB4, 0x00, (byte) 0xE8, 0x03
+    };
+    // Heart Rate Measurement, uint16 value, energy expended and 4 RR intervals.
+    private static final byte[] HEART_RATE = {
+            0x19, (byte) 0x8C, 0x00, 0x2C, 0x01, 0x00, 0x04, 0x10, 0x04, 0x20, 0x04, 0x30, 0x04
+    };
+
+    private com.sun.management.ThreadMXBean mThreadBean;
+    private long mThreadId;
+    private long mReadingCost;
+
+    @Before
+    public void setUp() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        mThreadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+        mThreadId = Thread.currentThread().getId();
+        // Warms up the readings, then measures what one costs.
+        for (int i = 0; i < 10; i++) {
+            allocatedBytes();
+        }
+        final long before = allocatedBytes();
+        mReadingCost = allocatedBytes() - before;
+    }
+
+    @Test
+    public void decodeCscReadsWheelAndCrank() {
+        final CscSample sample = new CscSample();
+        assertTrue(SensorDecoder.decodeCsc(CSC, sample));
+        assertTrue(sample.mWheelPresent);
+        assertEquals(10000, sample.mCumulativeWheelRevs);
+        assertEquals(1024, sample.mLastWheelEventTime);
+        assertTrue(sample.mCrankPresent);
+        assertEquals(100, sample.mCumulativeCrankRevs);
+        assertEquals(512, sample.mLastCrankEventTime);
+    }
+
+    @Test
+    public void decodeCyclingPowerReadsOptionalFields() {
+        final PowerSample sample = new PowerSample();
+        assertTrue(SensorDecoder.decodeCyclingPower(CYCLING_POWER, sample));
+        assertEquals(200, sample.mInstantaneousPower);
+        assertTrue(sample.mPedalPowerBalancePresent);
+        assertTrue(sample.mPedalPowerBalanceLeft);
+        assertEquals(100, sample.mPedalPowerBalance);
+        assertTrue(sample.mAccumulatedTorquePresent);
+        assertTrue(sample.mAccumulatedTorqueCrankBased);
+        assertEquals(800, sample.mAccumulatedTorque);
+        assertTrue(sample.mWheelPresent);
+        assertEquals(10000, sample.mCumulativeWheelRevs);
+        assertEquals(2048, sample.mLastWheelEventTime);
+        assertTrue(sample.mCrankPresent);
+        assertEquals(100, sample.mCumulativeCrankRevs);
+        assertEquals(1024, sample.mLastCrankEventTime);
+        assertTrue(sample.mExtremeForcePresent);
+        assertEquals(500, sample.mMaxForce);
+        assertEquals(10, sample.mMinForce);
+        assertTrue(sample.mExtremeTorquePresent);
+        assertEquals(320, sample.mMaxTorque);
+        assertEquals(5, sample.mMinTorque);
+        assertTrue(sample.mExtremeAnglesPresent);
+        assertEquals(90, sample.mMaxAngle);
+        assertEquals(180, sample.mMinAngle);
+        assertTrue(sample.mTopDeadSpotPresent);
+        assertEquals(10, sample.mTopDeadSpotAngle);
+        assertTrue(sample.mBottomDeadSpotPresent);
+        assertEquals(180, sample.mBottomDeadSpotAngle);
+        assertTrue(sample.mAccumulatedEnergyPresent);
+        assertEquals(1000, sample.mAccumulatedEnergy);
+        assertFalse(sample.mOffsetCompensation);
+    }
+
+    @Test
+    public void decodeHeartRateReadsUint16ValueAndRrIntervals() {
+        final HeartRateSample sample = new HeartRateSample();
+        assertTrue(SensorDecoder.decodeHeartRate(HEART_RATE, sample));
+        assertEquals(140, sample.mHeartRate);
+        assertFalse(sample.mContactSupported);
+        assertTrue(sample.mEnergyExpendedPresent);
+        assertEquals(300, sample.mEnergyExpended);
+        assertEquals(4, sample.mRrCount);
+        assertEquals(1024, sample.mRrIntervals[0]);
+        assertEquals(1040, sample.mRrIntervals[1]);
+        assertEquals(1056, sample.mRrIntervals[2]);
+        assertEquals(1072, sample.mRrIntervals[3]);
+        assertEquals(1000, sample.getRrIntervalMillis(0));
+    }
+
+    @Test
+    public void decodeCscAllocatesNothing() {
+        final CscSample sample = new CscSample();
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            SensorDecoder.decodeCsc(CSC, sample);
+        }
+        boolean complete = true;
+        final long before = allocatedBytes();
+        for (int i = 0; i < CALLS; i++) {
+            complete &= SensorDecoder.decodeCsc(CSC, sample);
+        }
+        final long allocated = allocatedBytes() - before - mReadingCost;
+        assertTrue(complete);
+        assertEquals(0, allocated);
+    }
+
+    @Test
+    public void decodeCyclingPowerAllocatesNothing() {
+        final PowerSample sample = new PowerSample();
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            SensorDecoder.decodeCyclingPower(CYCLING_POWER, sample);
+        }
+        boolean complete = true;
+        final long before = allocatedBytes();
+        for (int i = 0; i < CALLS; i++) {
+            complete &= SensorDecoder.decodeCyclingPower(CYCLING_POWER, sample);
+        }
+        final long allocated = allocatedBytes() - before - mReadingCost;
+        assertTrue(complete);
+        assertEquals(0, allocated);
+    }
+
+    @Test
+    public void decodeHeartRateAllocatesNothing() {
+        final HeartRateSample sample = new HeartRateSample();
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            SensorDecoder.decodeHeartRate(HEART_RATE, sample);
+        }
+        boolean complete = true;
+        final long before = allocatedBytes();
+        for (int i = 0; i < CALLS; i++) {
+            complete &= SensorDecoder.decodeHeartRate(HEART_RATE, sample);
+        }
+        final long allocated = allocatedBytes() - before - mReadingCost;
+        assertTrue(complete);
+        assertEquals(4, sample.mRrCount);
+        assertEquals(0, allocated);
+    }
+
+    private long allocatedBytes() {
+        return mThreadBean.getThreadAllocatedBytes(mThreadId);
+    }
+}
@@ -0,0 +1,631 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.widget.LinearLayout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Load test of the studio mode with simulated trainers, run on a device with
+ * {@code gradlew connectedAndroidTest}.
+ * <p/>
+ * For each rider count of {@link #RIDER_COUNTS}, that many {@link GattSession}s are connected
+ * to simulated trainers, each shown in its own {@link StudioRider} slot, as the
+ * {@link StudioActivity} does.  The trainers implement {@link GattLink} and deliver all their
+ * events (connection changes, discoveries, write completions and notifications) on one shared
+ * callback thread, as the Bluetooth binder does.
+ * <p/>
+ * Every {@link #STEP_INTERVAL} each rider gets a new power target through the brake channel of
+ * its session.  A trainer applies a target once the write reached it and reports it in its
+ * next Cycling Power notification; the time from setting the target to showing it in the slot
+ * of the rider is the latency measured.  From two riders on, the last trainer flaps: it drops
+ * its link every {@link #FLAP_PERIOD} and is reconnected by its session through the
+ * {@link ConnectGate}.  From four riders on, the one before it is slow: its writes take
+ * {@link #SLOW_WRITE_LATENCY} and its notifications come in bursts.  The targets of the other
+ * riders must still be shown within {@link #MAX_LATENCY}.
+ */
+public class StudioLoadTest extends InstrumentationTestCase {
+    private final static String TAG = StudioLoadTest.class.getSimpleName();
+    private final static UUID UUID_CYCLING_POWER_SERVICE =
+            UUID.fromString("00001818-0000-1000-8000-00805f9b34fb");
+    private final static UUID UUID_CYCLING_POWER_MEASUREMENT =
+            UUID.fromString(SampleGattAttributes.CYCLING_POWER_MEASUREMENT);
+    private final static UUID UUID_ELITE_TRAINER_SERVICE =
+            UUID.fromString(SampleGattAttributes.ELITE_TRAINER_SERVICE);
+    private final static UUID UUID_ELITE_TRAINER_BRAKE =
+            UUID.fromString(SampleGattAttributes.ELITE_TRAINER_TRAINER_BRAKE);
+    private final static UUID CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+    private static final int[] RIDER_COUNTS = {1, 2, 4, 8, 16};
+    // The trainers connect one at a time through the gate.
+    private static final long SETUP_TIMEOUT = 20000;
+    private static final long ROUND_DURATION = 10000;
+    private static final long STEP_INTERVAL = 1000;
+    private static final long MAX_LATENCY = 1000;
+    // Targets cycle through POWER_RANGE distinct values.
+    private static final int POWER_BASE = 100;
+    private static final int POWER_RANGE = 300;
+    private static final int BEHAVIOR_NORMAL = 0;
+    private static final int BEHAVIOR_SLOW = 1;
+    private static final int BEHAVIOR_FLAPPING = 2;
+    // Notifications per second of each simulated trainer.
+    private static final int SAMPLE_RATE = 4;
+    private static final long CONNECT_DELAY = 300;
+    private static final long DISCOVERY_DELAY = 200;
+    private static final long WRITE_LATENCY = 30;
+    // A write without response completes when the controller took it, before the trainer.
+    private static final long LOCAL_COMPLETION = 5;
+    private static final long SLOW_WRITE_LATENCY = 600;
+    // The slow trainer delivers its notifications in bursts of this many.
+    private static final int SLOW_BURST = 6;
+    private static final long FLAP_PERIOD = 3000;
+    // Supervision timeout, the usual status of a link lost.
+    private static final int STATUS_LINK_LOST = 8;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
+    private LinearLayout mParent;
+    // Round state, only touched on the main thread.
+    private final ArrayList<StudioRider> mRiders = new ArrayList<StudioRider>();
+    private final ArrayList<SimulatedTrainer> mTrainers = new ArrayList<SimulatedTrainer>();
+    private int[] mTargets;
+    private long[] mIssueTimes;
+    private int mStep;
+    private long[] mLatencies = new long[256];
+    private int mLatencyCount;
+    private int mMissedCount;
+    private long mMisbehavingMaxLatency;
+
+    private final GattSession.Host mHost = new GattSession.Host() {
+        @Override
+        public void onSessionStateChanged(final GattSession session, int status) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final StudioRider rider = findRider(session);
+                    if (rider != null) rider.updateState();
+                }
+            });
+        }
+
+        @Override
+        public void onSessionServicesDiscovered(final GattSession session) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final StudioRider rider = findRider(session);
+                    if (rider != null) rider.onServicesDiscovered();
+                }
+            });
+        }
+
+        @Override
+        public void onSessionBroadcast(GattSession session, Intent intent) {
+        }
+    };
+
+    private final StudioRider.Listener mRiderListener = new StudioRider.Listener() {
+        @Override
+        public void onPowerShown(StudioRider rider, int watts) {
+            final int index = mRiders.indexOf(rider);
+            if (index < 0 || mIssueTimes[index] == 0 || watts != mTargets[index]) return;
+            final long latency = SystemClock.elapsedRealtime() - mIssueTimes[index];
+            mIssueTimes[index] = 0;
+            if (mTrainers.get(index).mBehavior != BEHAVIOR_NORMAL) {
+                mMisbehavingMaxLatency = Math.max(mMisbehavingMaxLatency, latency);
+                return;
+            }
+            if (mLatencyCount == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mLatencyCount * 2);
+            }
+            mLatencies[mLatencyCount++] = latency;
+        }
+    };
+
+    private final Runnable mStepper = new Runnable() {
+        @Override
+        public void run() {
+            step();
+            mMainHandler.postDelayed(this, STEP_INTERVAL);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCallbackThread = new HandlerThread("SimulatedBinder");
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mParent = new LinearLayout(getInstrumentation().getTargetContext());
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                releaseRiders();
+            }
+        });
+        mCallbackThread.quit();
+        super.tearDown();
+    }
+
+    public void testPerRiderLatency() throws Exception {
+        final StringBuilder summary = new StringBuilder();
+        for (final int riders : RIDER_COUNTS) {
+            final ConnectGate gate = new ConnectGate();
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    startRound(riders, gate);
+                }
+            });
+            waitForBrakes();
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mMainHandler.post(mStepper);
+                }
+            });
+            Thread.sleep(ROUND_DURATION);
+
+            final long[] latencies;
+            final int missed;
+            final long misbehavingMax;
+            final int reconnections;
+            final int[] result = new int[1];
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mMainHandler.removeCallbacks(mStepper);
+                    final StudioRider flapping = riders >= 2 ? mRiders.get(riders - 1) : null;
+                    result[0] = flapping == null ? 0
+                            : flapping.getSession().getConnectionMetrics().getReconnectCount();
+                }
+            });
+            // Let the last targets arrive, the step timer is stopped.
+            Thread.sleep(MAX_LATENCY);
+            final Object[] stats = new Object[3];
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    stats[0] = Arrays.copyOf(mLatencies, mLatencyCount);
+                    stats[1] = mMissedCount + countPendingNormal();
+                    stats[2] = mMisbehavingMaxLatency;
+                    releaseRiders();
+                }
+            });
+            latencies = (long[]) stats[0];
+            missed = (Integer) stats[1];
+            misbehavingMax = (Long) stats[2];
+            reconnections = result[0];
+            Arrays.sort(latencies);
+
+            final String line = riders + " riders: p50 " + percentile(latencies, 50)
+                    + " ms, p99 " + percentile(latencies, 99) + " ms, max "
+                    + percentile(latencies, 100) + " ms over " + latencies.length
+                    + " targets, " + missed + " not shown"
+                    + (riders >= 2 ? "; misbehaving trainers max " + misbehavingMax
+                    + " ms, flapping trainer reconnected " + reconnections + " times" : "");
+            Log.i(TAG, line);
+            summary.append(line).append('\n');
+
+            assertTrue(line, latencies.length > 0);
+            assertEquals(line, 0, missed);
+            assertTrue(line, percentile(latencies, 100) <= MAX_LATENCY);
+            if (riders >= 2) {
+                assertTrue(line, reconnections > 0);
+            }
+        }
+        Log.i(TAG, "Studio load test\n" + summary);
+    }
+
+    // Main thread.
+    private void startRound(int riders, ConnectGate gate) {
+        mTargets = new int[riders];
+        mIssueTimes = new long[riders];
+        mStep = 0;
+        mLatencyCount = 0;
+        mMissedCount = 0;
+        mMisbehavingMaxLatency = 0;
+        final CharacteristicRegistry characteristics = CharacteristicRegistry.createDefault();
+        final MetricsBus mergedBus = new MetricsBus();
+        for (int i = 0; i < riders; i++) {
+            final int behavior;
+            if (riders >= 2 && i == riders - 1) {
+                behavior = BEHAVIOR_FLAPPING;
+            } else if (riders >= 4 && i == riders - 2) {
+                behavior = BEHAVIOR_SLOW;
+            } else {
+                behavior = BEHAVIOR_NORMAL;
+            }
+            final String address = "SIM:" + i;
+            final GattSession session = new GattSession(i + 1, address,
+                    getInstrumentation().getTargetContext(), mHost, characteristics, mergedBus,
+                    gate);
+            final StudioRider rider = new StudioRider(address, "Simulated " + (i + 1), mParent);
+            rider.setListener(mRiderListener);
+            rider.attach(session);
+            rider.start();
+            mRiders.add(rider);
+            final SimulatedTrainer trainer = new SimulatedTrainer(behavior);
+            mTrainers.add(trainer);
+            session.connect(trainer);
+        }
+    }
+
+    // Main thread.
+    private void step() {
+        mStep++;
+        for (int i = 0; i < mRiders.size(); i++) {
+            final StudioRider rider = mRiders.get(i);
+            if (mIssueTimes[i] != 0 && mTrainers.get(i).mBehavior == BEHAVIOR_NORMAL) {
+                mMissedCount++;
+            }
+            if (!rider.hasBrake()) {
+                // The flapping trainer while its link is down.
+                mIssueTimes[i] = 0;
+                continue;
+            }
+            mTargets[i] = POWER_BASE + (mStep * 37 + i * 11) % POWER_RANGE;
+            mIssueTimes[i] = SystemClock.elapsedRealtime();
+            rider.setTarget(BrakeCommandChannel.MODE_POWER, mTargets[i]);
+        }
+    }
+
+    // Main thread.
+    private int countPendingNormal() {
+        int pending = 0;
+        for (int i = 0; i < mRiders.size(); i++) {
+            if (mIssueTimes[i] != 0 && mTrainers.get(i).mBehavior == BEHAVIOR_NORMAL) pending++;
+        }
+        return pending;
+    }
+
+    // Main thread.
+    private void releaseRiders() {
+        mMainHandler.removeCallbacks(mStepper);
+        for (SimulatedTrainer trainer : mTrainers) {
+            trainer.stop();
+        }
+        for (StudioRider rider : mRiders) {
+            final GattSession session = rider.getSession();
+            rider.release();
+            if (session != null) session.close();
+        }
+        mTrainers.clear();
+        mRiders.clear();
+    }
+
+    private void waitForBrakes() throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + SETUP_TIMEOUT;
+        final boolean[] ready = new boolean[1];
+        while (SystemClock.elapsedRealtime() < deadline) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    ready[0] = true;
+                    for (StudioRider rider : mRiders) {
+                        ready[0] &= rider.hasBrake();
+                    }
+                }
+            });
+            if (ready[0]) return;
+            Thread.sleep(100);
+        }
+        fail("Simulated trainers not discovered within " + SETUP_TIMEOUT + " ms");
+    }
+
+    // Main thread.
+    private StudioRider findRider(GattSession session) {
+        for (StudioRider rider : mRiders) {
+            if (rider.getSession() == session) return rider;
+        }
+        return null;
+    }
+
+    // Nearest-rank percentile of sorted values.
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) return 0;
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * An Elite trainer with a Cycling Power service, whose events are all delivered on the
+     * shared callback thread.  It opens a new {@link Link} for each fresh connection.
+     */
+    private class SimulatedTrainer implements GattLink.Opener {
+        final int mBehavior;
+        final List<BluetoothGattService> mServices;
+        final BluetoothGattCharacteristic mPowerMeasurement;
+        // Trainer state, only touched on the callback thread.
+        Link mLink;
+        int mAppliedPower;
+        int mSampleCount;
+        boolean mStopped;
+
+        private final Runnable mNotify = new Runnable() {
+            @Override
+            public void run() {
+                if (mStopped) return;
+                final Link link = mLink;
+                if (link != null && link.mConnected && link.mNotifying) {
+                    final int burst = mBehavior == BEHAVIOR_SLOW ? SLOW_BURST : 1;
+                    mSampleCount++;
+                    if (mSampleCount % burst == 0) {
+                        for (int i = 0; i < burst; i++) {
+                            // Cycling Power Measurement with no optional field.
+                            mPowerMeasurement.setValue(new byte[]{0, 0,
+                                    (byte) (mAppliedPower & 0xFF),
+                                    (byte) ((mAppliedPower >> 8) & 0xFF)});
+                            link.mCallback.onCharacteristicChanged(null, mPowerMeasurement);
+                        }
+                    }
+                }
+                mCallbackHandler.postDelayed(this, 1000 / SAMPLE_RATE);
+            }
+        };
+        private final Runnable mFlap = new Runnable() {
+            @Override
+            public void run() {
+                if (mStopped) return;
+                final Link link = mLink;
+                if (link != null && link.mConnected) {
+                    link.drop(STATUS_LINK_LOST);
+                }
+                mCallbackHandler.postDelayed(this, FLAP_PERIOD);
+            }
+        };
+
+        SimulatedTrainer(int behavior) {
+            mBehavior = behavior;
+            final BluetoothGattService power = new BluetoothGattService(
+                    UUID_CYCLING_POWER_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            mPowerMeasurement = new BluetoothGattCharacteristic(UUID_CYCLING_POWER_MEASUREMENT,
+                    BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+            mPowerMeasurement.addDescriptor(new BluetoothGattDescriptor(
+                    CLIENT_CHARACTERISTIC_CONFIG, BluetoothGattDescriptor.PERMISSION_WRITE));
+            power.addCharacteristic(mPowerMeasurement);
+            final BluetoothGattService elite = new BluetoothGattService(
+                    UUID_ELITE_TRAINER_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            elite.addCharacteristic(new BluetoothGattCharacteristic(UUID_ELITE_TRAINER_BRAKE,
+                    BluetoothGattCharacteristic.PROPERTY_WRITE
+                            | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                    BluetoothGattCharacteristic.PERMISSION_WRITE));
+            final ArrayList<BluetoothGattService> services = new ArrayList<BluetoothGattService>();
+            services.add(power);
+            services.add(elite);
+            mServices = Collections.unmodifiableList(services);
+            mCallbackHandler.postDelayed(mNotify, 1000 / SAMPLE_RATE);
+            if (behavior == BEHAVIOR_FLAPPING) {
+                mCallbackHandler.postDelayed(mFlap, FLAP_PERIOD);
+            }
+        }
+
+        @Override
+        public GattLink open(BluetoothGattCallback callback) {
+            final Link link = new Link(callback);
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mLink = link;
+                }
+            });
+            link.connect();
+            return link;
+        }
+
+        void stop() {
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mStopped = true;
+                    mCallbackHandler.removeCallbacks(mNotify);
+                    mCallbackHandler.removeCallbacks(mFlap);
+                }
+            });
+        }
+
+        /**
+         * One {@code BluetoothGatt} of the trainer.  Its services are known once discovered
+         * and kept across the reconnections.
+         */
+        private class Link implements GattLink {
+            final BluetoothGattCallback mCallback;
+            // Only touched on the callback thread.
+            boolean mConnected;
+            boolean mConnecting;
+            boolean mClosed;
+            boolean mDiscovered;
+            boolean mNotifying;
+
+            Link(BluetoothGattCallback callback) {
+                mCallback = callback;
+            }
+
+            // Runs the event on the callback thread, unless the link was closed meanwhile.
+            void deliver(final Runnable event, long delay) {
+                mCallbackHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mClosed && !mStopped) event.run();
+                    }
+                }, delay);
+            }
+
+            // Callback thread.
+            void drop(int status) {
+                mConnected = false;
+                mNotifying = false;
+                mCallback.onConnectionStateChange(null, status,
+                        BluetoothProfile.STATE_DISCONNECTED);
+            }
+
+            @Override
+            public boolean connect() {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mConnected || mConnecting) return;
+                        mConnecting = true;
+                        deliver(new Runnable() {
+                            @Override
+                            public void run() {
+                                mConnecting = false;
+                                mConnected = true;
+                                mLink = Link.this;
+                                mCallback.onConnectionStateChange(null,
+                                        BluetoothGatt.GATT_SUCCESS,
+                                        BluetoothProfile.STATE_CONNECTED);
+                            }
+                        }, CONNECT_DELAY);
+                    }
+                }, 0);
+                return true;
+            }
+
+            @Override
+            public void disconnect() {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mConnected) drop(BluetoothGatt.GATT_SUCCESS);
+                    }
+                }, 0);
+            }
+
+            @Override
+            public void close() {
+                mCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mClosed = true;
+                        mConnected = false;
+                        if (mLink == Link.this) mLink = null;
+                    }
+                });
+            }
+
+            @Override
+            public List<BluetoothGattService> getServices() {
+                return mDiscovered ? mServices : Collections.<BluetoothGattService>emptyList();
+            }
+
+            @Override
+            public boolean setCharacteristicNotification(
+                    BluetoothGattCharacteristic characteristic, boolean enabled) {
+                return true;
+            }
+
+            @Override
+            public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+                return false;
+            }
+
+            @Override
+            public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+                // The value is taken when the write is issued, like the stack does.
+                final byte[] value = characteristic.getValue().clone();
+                final boolean withoutResponse = characteristic.getWriteType()
+                        == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+                final long latency = mBehavior == BEHAVIOR_SLOW ? SLOW_WRITE_LATENCY
+                        : WRITE_LATENCY;
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mConnected) return;
+                        if (value[0] == BrakeCommandChannel.MODE_POWER && value.length >= 3) {
+                            mAppliedPower = (value[1] & 0xFF) | ((value[2] & 0xFF) << 8);
+                        }
+                        if (!withoutResponse) {
+                            mCallback.onCharacteristicWrite(null, characteristic,
+                                    BluetoothGatt.GATT_SUCCESS);
+                        }
+                    }
+                }, latency);
+                if (withoutResponse) {
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            mCallback.onCharacteristicWrite(null, characteristic,
+                                    BluetoothGatt.GATT_SUCCESS);
+                        }
+                    }, LOCAL_COMPLETION);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+                final boolean enable = !Arrays.equals(descriptor.getValue(),
+                        BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mConnected) return;
+                        if (descriptor.getCharacteristic() == mPowerMeasurement) {
+                            mNotifying = enable;
+                        }
+                        mCallback.onDescriptorWrite(null, descriptor,
+                                BluetoothGatt.GATT_SUCCESS);
+                    }
+                }, WRITE_LATENCY);
+                return true;
+            }
+
+            @Override
+            public boolean discoverServices() {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mConnected) return;
+                        mDiscovered = true;
+                        mCallback.onServicesDiscovered(null, BluetoothGatt.GATT_SUCCESS);
+                    }
+                }, DISCOVERY_DELAY);
+                return true;
+            }
+
+            @Override
+            public boolean requestMtu(final int mtu) {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mConnected) return;
+                        mCallback.onMtuChanged(null, mtu, BluetoothGatt.GATT_SUCCESS);
+                    }
+                }, WRITE_LATENCY);
+                return true;
+            }
+
+            @Override
+            public boolean requestConnectionPriority(int priority) {
+                return true;
+            }
+        }
+    }
+}